@@ -29,6 +29,9 @@ dependencies {
 
     implementation("org.seleniumhq.selenium:selenium-java:4.39.0")
     implementation("io.github.bonigarcia:webdrivermanager:6.3.3")
+
+    testImplementation("junit:junit:4.13.2")
+    testImplementation("org.opentest4j:opentest4j:1.3.0")
 }
 
 intellijPlatform {
@@ -0,0 +1,284 @@
+package com.github.emotionbug.mermaidliveeditor;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import io.github.bonigarcia.wdm.WebDriverManager;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.edge.EdgeDriver;
+import org.openqa.selenium.edge.EdgeDriverService;
+import org.openqa.selenium.edge.EdgeOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Headless browser backing {@code ComputedStyleResolver}, kept alive for the whole IDE session.
+ *
+ * <p>Driver resolution and browser launch happen once, either lazily on the first export or ahead
+ * of time through {@link #warmUpInBackground()}. The resolution is reused for the rest of the
+ * session unless the driver settings change. Exports are serialized on this instance because a
+ * {@link WebDriver} is not thread safe.
+ *
+ * <p>An explicitly configured driver binary is used as is. In offline mode WebDriverManager is never
+ * consulted, so nothing is downloaded and no remote version metadata is queried.
+ */
+public final class MermaidExportBrowser implements Disposable {
+  private static final Logger log = LoggerFactory.getLogger(MermaidExportBrowser.class);
+
+  public enum State {
+    COLD("cold"),
+    WARMING("warming up"),
+    WARM("warm");
+
+    private final String displayName;
+
+    State(String displayName) {
+      this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+      return displayName;
+    }
+  }
+
+  interface DriverTask<T> {
+    T run(WebDriver driver) throws IOException;
+  }
+
+  private record DriverConfig(String driverPath, String browserPath, boolean offline) {}
+
+  private static final String DRIVER_PROPERTY = "webdriver.edge.driver";
+
+  private static final List<String> DEFAULT_BROWSER_PATHS = defaultBrowserPaths();
+
+  private volatile State state = State.COLD;
+  private volatile boolean disposed;
+  private DriverConfig resolvedConfig;
+  private String resolvedBrowserIdentity;
+  private String driverPath;
+  private String browserVersion;
+  private WebDriver driver;
+
+  public static MermaidExportBrowser getInstance() {
+    return ApplicationManager.getApplication().getService(MermaidExportBrowser.class);
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  /** Resolves the driver and launches the browser on a low-priority daemon thread. */
+  public void warmUpInBackground() {
+    if (state != State.COLD || disposed) return;
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                synchronized (this) {
+                  // The IDE may have shut down while this thread waited for the lock.
+                  if (disposed) return;
+                  ensureStarted();
+                }
+                log.info("Export browser warmed up (version {})", browserVersion);
+              } catch (Exception e) {
+                log.warn("Export browser warm-up failed: {}", e.getMessage());
+              }
+            },
+            "Mermaid Export Browser Warm-up");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Returns the driver and browser versions used to key cached extractions, without launching the
+   * browser.
+   */
+  synchronized String resolveBrowserVersion() {
+    resolveDriver();
+    return browserVersion;
+  }
+
+  synchronized <T> T withDriver(DriverTask<T> task) throws IOException {
+    ensureStarted();
+    try {
+      return task.run(driver);
+    } catch (WebDriverException e) {
+      // The session is most likely gone (crashed or closed browser); start over next time.
+      quitQuietly();
+      throw e;
+    } finally {
+      if (driver != null) {
+        try {
+          // Drop the exported document so the idle browser does not hold on to it.
+          driver.get("about:blank");
+        } catch (WebDriverException e) {
+          quitQuietly();
+        }
+      }
+    }
+  }
+
+  private static DriverConfig currentConfig() {
+    MermaidSettingsState settings = MermaidSettingsState.Companion.getInstance();
+    return new DriverConfig(
+        settings.getExportDriverPath().trim(),
+        settings.getExportBrowserPath().trim(),
+        settings.getOfflineExport());
+  }
+
+  private void resolveDriver() {
+    DriverConfig config = currentConfig();
+    String browserIdentity = browserIdentity(config.browserPath());
+    if (config.equals(resolvedConfig) && browserIdentity.equals(resolvedBrowserIdentity)) return;
+    if (resolvedConfig != null) {
+      log.info("Export driver settings or browser binary changed, resolving the driver again");
+      quitQuietly();
+    }
+
+    String path = config.driverPath();
+    String version;
+    if (!path.isEmpty()) {
+      version = probeDriverVersion(path);
+    } else if (config.offline()) {
+      path = findLocalDriver();
+      if (path == null) {
+        throw new IllegalStateException(
+            "Offline export is enabled but no Edge driver was found. "
+                + "Configure the driver binary in Settings | Mermaid Live Editor.");
+      }
+      version = probeDriverVersion(path);
+    } else {
+      WebDriverManager wdm = WebDriverManager.edgedriver();
+      wdm.setup();
+      path = wdm.getDownloadedDriverPath();
+      version = wdm.getResolvedBrowserVersion();
+      if (version == null) version = wdm.getDownloadedDriverVersion();
+    }
+
+    log.info("Resolved export driver {} (version {}) for browser {}", path, version, browserIdentity);
+    driverPath = path;
+    // A driver version says nothing about the browser computing the styles, so key by both.
+    browserVersion = version + " / " + browserIdentity;
+    resolvedConfig = config;
+    resolvedBrowserIdentity = browserIdentity;
+  }
+
+  /** Looks for a driver without touching the network: the Selenium system property, then PATH. */
+  private static String findLocalDriver() {
+    String fromProperty = System.getProperty(DRIVER_PROPERTY);
+    if (fromProperty != null && new File(fromProperty).canExecute()) return fromProperty;
+
+    String pathEnv = System.getenv("PATH");
+    if (pathEnv == null) return null;
+    String[] names = {"msedgedriver", "msedgedriver.exe"};
+    for (String dir : pathEnv.split(File.pathSeparator)) {
+      for (String name : names) {
+        File candidate = new File(dir, name);
+        if (candidate.isFile() && candidate.canExecute()) return candidate.getAbsolutePath();
+      }
+    }
+    return null;
+  }
+
+  /** Asks the driver binary for its version; falls back to the file identity for cache keys. */
+  private static String probeDriverVersion(String path) {
+    File file = new File(path);
+    try {
+      Process process = new ProcessBuilder(path, "--version").redirectErrorStream(true).start();
+      if (process.waitFor(5, TimeUnit.SECONDS) && process.exitValue() == 0) {
+        String output =
+            new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        if (!output.isEmpty()) return output;
+      } else {
+        process.destroyForcibly();
+      }
+    } catch (IOException e) {
+      log.debug("Failed to query driver version of {}: {}", path, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return fileIdentity(file);
+  }
+
+  /**
+   * Identifies the browser binary by path and modification time, which change when it is replaced
+   * or updated. Asking the binary for its version would launch a browser window on Windows.
+   */
+  private static String browserIdentity(String browserPath) {
+    List<String> candidates = browserPath.isEmpty() ? DEFAULT_BROWSER_PATHS : List.of(browserPath);
+    for (String candidate : candidates) {
+      File file = new File(candidate);
+      if (file.isFile()) return fileIdentity(file);
+    }
+    return browserPath.isEmpty() ? "default browser" : browserPath;
+  }
+
+  private static String fileIdentity(File file) {
+    return file.getAbsolutePath() + "@" + file.lastModified();
+  }
+
+  /** Where Microsoft Edge installs itself when no browser binary is configured. */
+  private static List<String> defaultBrowserPaths() {
+    List<String> paths = new ArrayList<>();
+    for (String variable : new String[] {"ProgramFiles(x86)", "ProgramFiles", "LOCALAPPDATA"}) {
+      String dir = System.getenv(variable);
+      if (dir != null) paths.add(dir + "\\Microsoft\\Edge\\Application\\msedge.exe");
+    }
+    paths.add("/Applications/Microsoft Edge.app/Contents/MacOS/Microsoft Edge");
+    paths.add("/opt/microsoft/msedge/msedge");
+    paths.add("/usr/bin/microsoft-edge-stable");
+    paths.add("/usr/bin/microsoft-edge");
+    return paths;
+  }
+
+  private void ensureStarted() {
+    if (disposed) throw new IllegalStateException("The export browser has been shut down");
+    resolveDriver();
+    if (driver != null) return;
+    state = State.WARMING;
+    try {
+      EdgeOptions options = new EdgeOptions();
+      options.addArguments(
+          "--headless=new", // SVG / CSS 계산 정확도 ↑
+          "--disable-gpu",
+          "--window-size=1920,1080",
+          "--disable-dev-shm-usage",
+          "--no-sandbox");
+      String browserPath = resolvedConfig.browserPath();
+      if (!browserPath.isEmpty()) options.setBinary(browserPath);
+
+      EdgeDriverService service =
+          new EdgeDriverService.Builder().usingDriverExecutable(new File(driverPath)).build();
+      driver = new EdgeDriver(service, options);
+      state = State.WARM;
+    } catch (RuntimeException e) {
+      state = State.COLD;
+      throw e;
+    }
+  }
+
+  private void quitQuietly() {
+    WebDriver d = driver;
+    driver = null;
+    state = State.COLD;
+    if (d == null) return;
+    try {
+      d.quit();
+    } catch (WebDriverException e) {
+      log.debug("Failed to quit export browser: {}", e.getMessage());
+    }
+  }
+
+  @Override
+  public synchronized void dispose() {
+    disposed = true;
+    quitQuietly();
+  }
+}
@@ -0,0 +1,166 @@
+package com.github.emotionbug.mermaidliveeditor;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.intellij.openapi.application.PathManager;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk cache of the browser extraction results used by {@code ComputedStyleResolver}.
+ *
+ * <p>Entries are keyed by a hash of the instrumented SVG and the browser version, so re-exporting
+ * an unchanged diagram skips the headless browser entirely. The directory is kept under a size cap
+ * by evicting the least recently used entries (tracked through the file modification time).
+ */
+final class MermaidExtractionCache {
+  private static final Logger log = LoggerFactory.getLogger(MermaidExtractionCache.class);
+
+  static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+  // Bump whenever the shape of the cached extraction payload changes.
+  static final String FORMAT_VERSION = "2";
+  private static final String SUFFIX = ".json.gz";
+  private static final Type PAYLOAD_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
+
+  private static volatile MermaidExtractionCache instance;
+
+  private final Path dir;
+  private final long maxBytes;
+  private final Gson gson = new Gson();
+
+  MermaidExtractionCache(Path dir, long maxBytes) {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+  }
+
+  static MermaidExtractionCache getInstance() {
+    MermaidExtractionCache result = instance;
+    if (result == null) {
+      synchronized (MermaidExtractionCache.class) {
+        result = instance;
+        if (result == null) {
+          Path dir = PathManager.getSystemDir().resolve("mermaid-live-editor").resolve("extraction");
+          result = instance = new MermaidExtractionCache(dir, DEFAULT_MAX_BYTES);
+        }
+      }
+    }
+    return result;
+  }
+
+  static String key(String instrumentedSvg, String browserVersion) {
+    return key(FORMAT_VERSION, instrumentedSvg, browserVersion);
+  }
+
+  static String key(String formatVersion, String instrumentedSvg, String browserVersion) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(formatVersion.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      md.update(String.valueOf(browserVersion).getBytes(StandardCharsets.UTF_8));
+      md.update((byte) 0);
+      md.update(instrumentedSvg.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  synchronized Map<String, Object> get(String key) {
+    Path file = dir.resolve(key + SUFFIX);
+    if (!Files.isRegularFile(file)) return null;
+    try (Reader reader =
+        new InputStreamReader(
+            new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8)) {
+      Map<String, Object> data = gson.fromJson(reader, PAYLOAD_TYPE);
+      // Touch the entry so eviction treats it as recently used.
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      return data;
+    } catch (Exception e) {
+      log.warn("Dropping unreadable extraction cache entry {}: {}", file, e.getMessage());
+      deleteQuietly(file);
+      return null;
+    }
+  }
+
+  synchronized void put(String key, Map<String, Object> data) {
+    if (data == null) return;
+    try {
+      Files.createDirectories(dir);
+      Path tmp = Files.createTempFile(dir, key, ".tmp");
+      try (Writer writer =
+          new OutputStreamWriter(
+              new GZIPOutputStream(Files.newOutputStream(tmp)), StandardCharsets.UTF_8)) {
+        gson.toJson(data, PAYLOAD_TYPE, writer);
+      } catch (IOException | RuntimeException e) {
+        deleteQuietly(tmp);
+        throw e;
+      }
+      Files.move(
+          tmp,
+          dir.resolve(key + SUFFIX),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      evictIfNeeded();
+    } catch (Exception e) {
+      log.warn("Failed to store extraction cache entry: {}", e.getMessage());
+    }
+  }
+
+  private void evictIfNeeded() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(entries::add);
+    }
+
+    long total = 0;
+    for (Path p : entries) total += Files.size(p);
+    if (total <= maxBytes) return;
+
+    entries.sort(Comparator.comparing(MermaidExtractionCache::lastModified));
+    for (Path p : entries) {
+      if (total <= maxBytes) break;
+      long size = Files.size(p);
+      deleteQuietly(p);
+      total -= size;
+      log.debug("Evicted extraction cache entry {}", p.getFileName());
+    }
+  }
+
+  private static FileTime lastModified(Path p) {
+    try {
+      return Files.getLastModifiedTime(p);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static void deleteQuietly(Path p) {
+    try {
+      Files.deleteIfExists(p);
+    } catch (IOException ignored) {
+      // best effort
+    }
+  }
+}
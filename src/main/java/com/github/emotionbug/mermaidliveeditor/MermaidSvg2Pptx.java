@@ -1,6 +1,5 @@
 package com.github.emotionbug.mermaidliveeditor;
 
-import io.github.bonigarcia.wdm.WebDriverManager;
 import java.awt.*;
 import java.awt.Shape;
 import java.awt.font.FontRenderContext;
@@ -8,7 +7,10 @@ import java.awt.geom.*;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.util.*;
 import java.util.List;
@@ -26,8 +28,6 @@ import org.apache.poi.sl.usermodel.*;
 import org.apache.poi.xslf.usermodel.*;
 import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.WebDriver;
-import org.openqa.selenium.edge.EdgeDriver;
-import org.openqa.selenium.edge.EdgeOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -481,15 +481,8 @@ public class MermaidSvg2Pptx {
 
   static AffineTransform getFullTransform(Element el, ComputedStyleResolver css) {
     if (css != null && css.hasBrowserStyles()) {
-      Map<String, Object> data = css.getElementData(el);
-      if (data != null && data.get("ctm") != null) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> c = (Map<String, Object>) data.get("ctm");
-        return new AffineTransform(
-            ((Number) c.get("a")).doubleValue(), ((Number) c.get("b")).doubleValue(),
-            ((Number) c.get("c")).doubleValue(), ((Number) c.get("d")).doubleValue(),
-            ((Number) c.get("e")).doubleValue(), ((Number) c.get("f")).doubleValue());
-      }
+      AffineTransform ctm = css.getCTM(el);
+      if (ctm != null) return ctm;
     }
 
     AffineTransform at = new AffineTransform();
@@ -516,15 +509,13 @@ public class MermaidSvg2Pptx {
   }
 
   static Rectangle2D getGlobalBBox(Element el, ComputedStyleResolver css) {
-    Map<String, Object> data = css.getElementData(el);
-    if (data == null || data.get("bbox") == null) return null;
+    Rectangle2D b = css.getBBox(el);
+    if (b == null) return null;
 
-    @SuppressWarnings("unchecked")
-    Map<String, Object> b = (Map<String, Object>) data.get("bbox");
-    double bx = ((Number) b.get("x")).doubleValue();
-    double by = ((Number) b.get("y")).doubleValue();
-    double bw = ((Number) b.get("width")).doubleValue();
-    double bh = ((Number) b.get("height")).doubleValue();
+    double bx = b.getX();
+    double by = b.getY();
+    double bw = b.getWidth();
+    double bh = b.getHeight();
 
     // line elements sometimes have 0 width/height in bbox but have coordinates
     if (bw == 0 && bh == 0 && !el.getTagName().equals("line")) return null;
@@ -1123,17 +1114,9 @@ public class MermaidSvg2Pptx {
     TextParagraph.TextAlign align = TextParagraph.TextAlign.LEFT;
 
     for (Element e : els) {
-      Map<String, Object> data = css.getElementData(e);
-      if (data != null && data.get("bbox") != null) {
-        @SuppressWarnings("unchecked")
-        Map<String, Object> b = (Map<String, Object>) data.get("bbox");
-        double bx = ((Number) b.get("x")).doubleValue();
-        double by = ((Number) b.get("y")).doubleValue();
-        double bw = ((Number) b.get("width")).doubleValue();
-        double bh = ((Number) b.get("height")).doubleValue();
-
+      Rectangle2D localRect = css.getBBox(e);
+      if (localRect != null) {
         AffineTransform at = getFullTransform(e, css);
-        Rectangle2D localRect = new Rectangle2D.Double(bx, by, bw, bh);
         Shape transShape = at.createTransformedShape(localRect);
         Rectangle2D bounds = transShape.getBounds2D();
 
@@ -1269,6 +1252,18 @@ public class MermaidSvg2Pptx {
 
   public static void generate(String svgContent, File outFile)
       throws IOException, ParserConfigurationException, SAXException {
+    try (FileOutputStream fos = new FileOutputStream(outFile)) {
+      generate(svgContent, fos);
+    }
+    log.info("Wrote to {}", outFile);
+  }
+
+  /**
+   * Converts the SVG and writes the PPTX to {@code out}. Runs the export browser, so call it off
+   * the EDT.
+   */
+  public static void generate(String svgContent, OutputStream out)
+      throws IOException, ParserConfigurationException, SAXException {
     DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
     dbf.setNamespaceAware(true);
     dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
@@ -1378,11 +1373,8 @@ public class MermaidSvg2Pptx {
 
       drawRecursive(slide, svg, mp, css, markers);
 
-      try (FileOutputStream fos = new FileOutputStream(outFile)) {
-        ppt.write(fos);
-      }
+      ppt.write(out);
     }
-    log.info("Wrote to {}", outFile);
   }
 
   private static void drawRecursive(
@@ -1572,10 +1564,34 @@ public class MermaidSvg2Pptx {
   }
 
   static class ComputedStyleResolver {
+    // Computed style properties read by the converter, in the order they are packed by the
+    // extraction script.
+    static final String[] STYLE_PROPERTIES = {
+      "fill",
+      "stroke",
+      "stroke-width",
+      "stroke-dasharray",
+      "font-size",
+      "font-family",
+      "text-anchor",
+      "marker-start",
+      "marker-end",
+      "color"
+    };
+
+    // Layout of one row in the packed numeric array:
+    // idx, flags, bbox x/y/width/height, ctm a/b/c/d/e/f
+    static final int NUM_STRIDE = 12;
+    static final int FLAG_HIDDEN = 1;
+    static final int FLAG_BBOX = 2;
+    static final int FLAG_CTM = 4;
+
     private final Map<String, Element> indexToElement = new HashMap<>();
-    private final Map<String, Map<String, Object>> indexToData = new HashMap<>();
-    private Map<String, Map<String, String>> browserStyles = null;
-    private List<Map<String, Object>> elementDataList = null;
+    private int rowCount = 0;
+    private double[] nums = null;
+    private int[] styleRefs = null;
+    private String[] strings = null;
+    private int[] indexToRow = null;
 
     public ComputedStyleResolver(Document doc) {
       // 1. Instrument SVG with Indices for mapping
@@ -1584,130 +1600,225 @@ public class MermaidSvg2Pptx {
       // 2. Selenium extraction
       try {
         extractStylesWithSelenium(doc);
-        if (elementDataList != null) {
-          log.info("Selenium data extracted successfully. Count: {}", elementDataList.size());
+        if (nums != null) {
+          log.info("Selenium data extracted successfully. Count: {}", rowCount);
         }
       } catch (Exception t) {
         log.error("Selenium extraction failed: {}", t.getMessage(), t);
       }
     }
 
-    @SuppressWarnings("unchecked")
     private void extractStylesWithSelenium(Document doc) throws TransformerException, IOException {
-      WebDriverManager.edgedriver().setup();
+      MermaidExportBrowser browser = MermaidExportBrowser.getInstance();
+
+      // 0. Reuse a previous extraction of the very same SVG in the same browser version
+      String xml = documentToString(doc);
+      String browserVersion = browser.resolveBrowserVersion();
+      MermaidExtractionCache cache = MermaidExtractionCache.getInstance();
+      String cacheKey = MermaidExtractionCache.key(xml, browserVersion);
+      Map<String, Object> cached = cache.get(cacheKey);
+      if (cached != null) {
+        applyPayload(cached);
+        log.info("Using cached browser extraction ({} elements)", rowCount);
+        return;
+      }
 
-      EdgeOptions options = new EdgeOptions();
-      options.addArguments(
-          "--headless=new", // SVG / CSS 계산 정확도 ↑
-          "--disable-gpu",
-          "--window-size=1920,1080",
-          "--disable-dev-shm-usage",
-          "--no-sandbox");
+      Map<String, Object> result = browser.withDriver(driver -> extractWithDriver(driver, xml));
+      applyPayload(result);
+      cache.put(cacheKey, result);
+    }
 
-      WebDriver driver = new EdgeDriver(options);
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> extractWithDriver(WebDriver driver, String xml)
+        throws IOException {
+      File tempFile = File.createTempFile("mermaid-instr-", ".svg");
       try {
-        String xml = documentToString(doc);
-        File tempFile = File.createTempFile("mermaid-instr-", ".svg");
-        try {
-          Files.writeString(tempFile.toPath(), xml);
-          driver.get(tempFile.toURI().toString());
-
-          JavascriptExecutor js = (JavascriptExecutor) driver;
-          String script =
-              """
-                  const results = [];
-                  const all = document.querySelectorAll('*');
-                  all.forEach(el => {
-                      const idx = el.getAttribute('data-style-idx');
-                      if (idx === null) return;
-                      let p = el.parentElement;
-                      let inDefs = false;
-                      while (p) {
-                          const tn = p.tagName.toLowerCase();
-                          if (tn === 'defs' || tn === 'marker') { inDefs = true; break; }
-                          p = p.parentElement;
-                      }
-                      const s = window.getComputedStyle(el);
-                      const styles = {
-                          'fill': s.fill,
-                          'stroke': s.stroke,
-                          'stroke-width': s.strokeWidth,
-                          'stroke-dasharray': s.strokeDasharray,
-                          'font-size': s.fontSize,
-                          'font-family': s.fontFamily,
-                          'text-anchor': s.textAnchor,
-                          'marker-start': s.markerStart,
-                          'marker-end': s.markerEnd,
-                          'color': s.color
-                      };
-                      const attrs = {};
-                      for (let i = 0; i < el.attributes.length; i++) {
-                          attrs[el.attributes[i].name] = el.attributes[i].value;
-                      }
-                      let bbox = null;
-                      let ctm = null;
-                      if (typeof el.getBBox === 'function') {
-                          try {
-                              const b = el.getBBox();
-                              bbox = { x: b.x, y: b.y, width: b.width, height: b.height };
-                              const c = el.getCTM();
-                              if (c) ctm = { a: c.a, b: c.b, c: c.c, d: c.d, e: c.e, f: c.f };
-                          } catch(e) {}
-                      }
-                      results.push({ idx, tagName: el.tagName.toLowerCase(), styles, attrs, bbox, ctm, isHidden: inDefs });
-                  });
-                  return results;""";
-
-          this.elementDataList = (List<Map<String, Object>>) js.executeScript(script);
-          this.browserStyles = new HashMap<>();
-          for (Map<String, Object> item : elementDataList) {
-            String idx = (String) item.get("idx");
-            this.browserStyles.put(idx, (Map<String, String>) item.get("styles"));
-            this.indexToData.put(idx, item);
-          }
-        } finally {
-          tempFile.delete();
-        }
+        Files.writeString(tempFile.toPath(), xml);
+        driver.get(tempFile.toURI().toString());
+
+        JavascriptExecutor js = (JavascriptExecutor) driver;
+        // Single pre-order walk that packs everything into two typed arrays and a string table,
+        // so the driver only has to ship a handful of strings instead of one map per element.
+        // Typed arrays use the platform byte order, which is little-endian on every platform
+        // Edge runs on.
+        String script =
+            """
+                const props = arguments[0];
+                const stride = arguments[1];
+                const total = document.getElementsByTagName('*').length;
+                const nums = new Float64Array(total * stride);
+                const styles = new Int32Array(total * props.length);
+                const strings = [];
+                const stringIndex = new Map();
+                let count = 0;
+
+                function intern(v) {
+                    let i = stringIndex.get(v);
+                    if (i === undefined) {
+                        i = strings.length;
+                        strings.push(v);
+                        stringIndex.set(v, i);
+                    }
+                    return i;
+                }
+
+                function walk(el, hidden) {
+                    const idx = el.getAttribute('data-style-idx');
+                    if (idx !== null) {
+                        const o = count * stride;
+                        let flags = hidden ? 1 : 0;
+                        nums[o] = +idx;
+                        if (typeof el.getBBox === 'function') {
+                            try {
+                                const b = el.getBBox();
+                                nums[o + 2] = b.x; nums[o + 3] = b.y;
+                                nums[o + 4] = b.width; nums[o + 5] = b.height;
+                                flags |= 2;
+                                const c = el.getCTM();
+                                if (c) {
+                                    nums[o + 6] = c.a; nums[o + 7] = c.b; nums[o + 8] = c.c;
+                                    nums[o + 9] = c.d; nums[o + 10] = c.e; nums[o + 11] = c.f;
+                                    flags |= 4;
+                                }
+                            } catch (e) {}
+                        }
+                        nums[o + 1] = flags;
+                        const s = window.getComputedStyle(el);
+                        const so = count * props.length;
+                        for (let i = 0; i < props.length; i++) {
+                            styles[so + i] = intern(s.getPropertyValue(props[i]));
+                        }
+                        count++;
+                    }
+                    const tn = el.localName;
+                    const childHidden = hidden || tn === 'defs' || tn === 'marker';
+                    for (let c = el.firstElementChild; c; c = c.nextElementSibling) {
+                        walk(c, childHidden);
+                    }
+                }
+
+                function toBase64(view) {
+                    const bytes = new Uint8Array(view.buffer, view.byteOffset, view.byteLength);
+                    let bin = '';
+                    for (let i = 0; i < bytes.length; i += 0x8000) {
+                        bin += String.fromCharCode.apply(null, bytes.subarray(i, i + 0x8000));
+                    }
+                    return btoa(bin);
+                }
+
+                walk(document.documentElement, false);
+                return {
+                    count: count,
+                    strings: strings,
+                    nums: toBase64(nums.subarray(0, count * stride)),
+                    styles: toBase64(styles.subarray(0, count * props.length))
+                };""";
+
+        return (Map<String, Object>)
+            js.executeScript(script, Arrays.asList(STYLE_PROPERTIES), NUM_STRIDE);
       } finally {
-        driver.quit();
+        tempFile.delete();
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void applyPayload(Map<String, Object> payload) {
+      int count = ((Number) payload.get("count")).intValue();
+
+      ByteBuffer numBytes =
+          ByteBuffer.wrap(Base64.getDecoder().decode((String) payload.get("nums")))
+              .order(ByteOrder.LITTLE_ENDIAN);
+      double[] n = new double[count * NUM_STRIDE];
+      numBytes.asDoubleBuffer().get(n);
+
+      ByteBuffer styleBytes =
+          ByteBuffer.wrap(Base64.getDecoder().decode((String) payload.get("styles")))
+              .order(ByteOrder.LITTLE_ENDIAN);
+      int[] refs = new int[count * STYLE_PROPERTIES.length];
+      styleBytes.asIntBuffer().get(refs);
+
+      List<String> table = (List<String>) payload.get("strings");
+
+      int[] rows = new int[indexToElement.size()];
+      Arrays.fill(rows, -1);
+      for (int r = 0; r < count; r++) {
+        int idx = (int) n[r * NUM_STRIDE];
+        if (idx >= 0 && idx < rows.length) rows[idx] = r;
+      }
+
+      this.rowCount = count;
+      this.nums = n;
+      this.styleRefs = refs;
+      this.strings = table.toArray(new String[0]);
+      this.indexToRow = rows;
+    }
+
+    private int rowOf(Element el) {
+      if (indexToRow == null) return -1;
+      String idx = el.getAttribute("data-style-idx");
+      if (idx.isEmpty()) return -1;
+      try {
+        int i = Integer.parseInt(idx);
+        return (i >= 0 && i < indexToRow.length) ? indexToRow[i] : -1;
+      } catch (NumberFormatException e) {
+        return -1;
       }
     }
 
     public boolean hasBrowserStyles() {
-      return elementDataList != null;
+      return nums != null;
     }
 
     public List<Element> getOrderedElements() {
-      if (elementDataList == null) return null;
+      if (nums == null) return null;
       List<Element> result = new ArrayList<>();
-      for (Map<String, Object> item : elementDataList) {
-        if (Boolean.TRUE.equals(item.get("isHidden"))) continue;
-        String idx = (String) item.get("idx");
-        Element el = indexToElement.get(idx);
+      for (int r = 0; r < rowCount; r++) {
+        int o = r * NUM_STRIDE;
+        if ((((int) nums[o + 1]) & FLAG_HIDDEN) != 0) continue;
+        Element el = indexToElement.get(String.valueOf((int) nums[o]));
         if (el != null) result.add(el);
       }
       return result;
     }
 
-    public Map<String, Object> getElementData(Element el) {
-      return indexToData.get(el.getAttribute("data-style-idx"));
+    public Rectangle2D getBBox(Element el) {
+      int r = rowOf(el);
+      if (r < 0) return null;
+      int o = r * NUM_STRIDE;
+      if ((((int) nums[o + 1]) & FLAG_BBOX) == 0) return null;
+      return new Rectangle2D.Double(nums[o + 2], nums[o + 3], nums[o + 4], nums[o + 5]);
+    }
+
+    public AffineTransform getCTM(Element el) {
+      int r = rowOf(el);
+      if (r < 0) return null;
+      int o = r * NUM_STRIDE;
+      if ((((int) nums[o + 1]) & FLAG_CTM) == 0) return null;
+      return new AffineTransform(
+          nums[o + 6], nums[o + 7], nums[o + 8], nums[o + 9], nums[o + 10], nums[o + 11]);
+    }
+
+    private String browserStyle(Element el, int property) {
+      int r = rowOf(el);
+      if (r < 0) return null;
+      return strings[styleRefs[r * STYLE_PROPERTIES.length + property]];
     }
 
     public String getStyle(Element el, String propertyName) {
-      String val = null;
+      int property = Arrays.asList(STYLE_PROPERTIES).indexOf(propertyName);
+      if (property >= 0) return getStyle(el, property);
+      String attr = el.getAttribute(propertyName);
+      return attr.isEmpty() ? null : attr;
+    }
 
+    private String getStyle(Element el, int property) {
       // 1. Try Browser Styles first (via index)
-      if (browserStyles != null) {
-        String idx = el.getAttribute("data-style-idx");
-        if (browserStyles.containsKey(idx)) {
-          val = browserStyles.get(idx).get(propertyName);
-          if (isNoneOrTransparent(val) || "rgba(0, 0, 0, 0)".equalsIgnoreCase(val)) val = null;
-        }
-      }
+      String val = browserStyle(el, property);
+      if (isNoneOrTransparent(val) || "rgba(0, 0, 0, 0)".equalsIgnoreCase(val)) val = null;
 
       // 2. Fallback to Attribute
       if (val == null || isNoneOrTransparent(val)) {
-        String attr = el.getAttribute(propertyName);
+        String attr = el.getAttribute(STYLE_PROPERTIES[property]);
         if (!attr.isEmpty()) val = attr;
       }
       return val;
@@ -1715,21 +1826,9 @@ public class MermaidSvg2Pptx {
 
     public Map<String, String> styleFor(Element el) {
       Map<String, String> merged = new HashMap<>();
-      String[] pAttrs = {
-        "fill",
-        "stroke",
-        "stroke-width",
-        "stroke-dasharray",
-        "font-size",
-        "font-family",
-        "text-anchor",
-        "marker-start",
-        "marker-end",
-        "color"
-      };
-      for (String a : pAttrs) {
-        String val = getStyle(el, a);
-        if (val != null) merged.put(a, val);
+      for (int i = 0; i < STYLE_PROPERTIES.length; i++) {
+        String val = getStyle(el, i);
+        if (val != null) merged.put(STYLE_PROPERTIES[i], val);
       }
       return merged;
     }
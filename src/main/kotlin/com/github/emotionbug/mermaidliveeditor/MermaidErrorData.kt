@@ -1,5 +1,6 @@
 package com.github.emotionbug.mermaidliveeditor
 
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidPageTiming
 import com.intellij.openapi.util.Key
 
 data class MermaidError(
@@ -9,7 +10,60 @@ data class MermaidError(
 )
 
 data class MermaidErrorData(
-    val errors: List<MermaidError>
+    val errors: List<MermaidError>,
+    val generation: Long = 0,
+    val renderMs: Double = 0.0
+)
+
+data class MermaidRenderResult(
+    val generation: Long,
+    // Length of the rendered SVG; the markup itself is fetched from the page only for exports.
+    val size: Int = 0,
+    val renderMs: Double = 0.0,
+    val cache: MermaidRenderCacheStats? = null,
+    val memory: MermaidPageMemoryStats? = null,
+    val timing: MermaidPageTiming? = null
+)
+
+/** Counters of the rendered-SVG cache kept by the preview page. */
+data class MermaidRenderCacheStats(
+    val hits: Int = 0,
+    val misses: Int = 0,
+    val entries: Int = 0,
+    val chars: Long = 0
+)
+
+/** Phase timings and structure of one diagram, measured by the preview page on request. */
+data class MermaidDiagramProfile(
+    val requestId: Int = 0,
+    val error: String? = null,
+    val parseMs: Double = 0.0,
+    val renderMs: Double = 0.0,
+    val domMs: Double = 0.0,
+    val svgChars: Int = 0,
+    val nodes: Int = 0,
+    val edges: Int = 0,
+    val subgraphs: Int = 0,
+    val textElements: Int = 0,
+    val pathPoints: Int = 0,
+    val domElements: Int = 0,
+    val largestSubgraphs: List<MermaidSubgraphProfile> = emptyList()
+)
+
+data class MermaidSubgraphProfile(
+    val id: String = "",
+    val label: String = "",
+    val nodes: Int = 0,
+    val width: Int = 0,
+    val height: Int = 0
+)
+
+/** JS heap usage of the preview page, in bytes, and the number of elements in its document. */
+data class MermaidPageMemoryStats(
+    val usedHeap: Long = 0,
+    val totalHeap: Long = 0,
+    val heapLimit: Long = 0,
+    val domNodes: Int = 0
 )
 
 val MERMAID_ERROR_KEY = Key.create<MermaidErrorData>("MERMAID_ERROR_KEY")
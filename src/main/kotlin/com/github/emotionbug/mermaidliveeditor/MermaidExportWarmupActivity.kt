@@ -0,0 +1,28 @@
+package com.github.emotionbug.mermaidliveeditor
+
+import com.intellij.openapi.application.smartReadAction
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.startup.ProjectActivity
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+
+/**
+ * Starts the PPTX export browser in the background once a project containing Mermaid files opens,
+ * so the first export of the session does not pay for driver resolution and browser launch.
+ */
+class MermaidExportWarmupActivity : ProjectActivity {
+    override suspend fun execute(project: Project) {
+        if (!MermaidSettingsState.instance.prewarmExportBrowser) return
+
+        val exportBrowser = MermaidExportBrowser.getInstance()
+        if (exportBrowser.state != MermaidExportBrowser.State.COLD) return
+
+        // Waits for indexing, which also keeps the warm-up out of the way of project startup.
+        val hasMermaidFiles = smartReadAction(project) {
+            FileTypeIndex.containsFileOfType(MermaidFileType, GlobalSearchScope.projectScope(project))
+        }
+        if (hasMermaidFiles) {
+            exportBrowser.warmUpInBackground()
+        }
+    }
+}
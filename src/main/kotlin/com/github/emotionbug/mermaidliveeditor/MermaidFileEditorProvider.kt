@@ -1,5 +1,9 @@
 package com.github.emotionbug.mermaidliveeditor
 
+import com.github.emotionbug.mermaidliveeditor.editor.actions.ProfileDiagramAction
+import com.github.emotionbug.mermaidliveeditor.editor.actions.RefreshPreviewAction
+import com.intellij.openapi.actionSystem.ActionGroup
+import com.intellij.openapi.actionSystem.DefaultActionGroup
 import com.intellij.openapi.fileEditor.*
 import com.intellij.openapi.fileEditor.impl.text.TextEditorProvider
 import com.intellij.openapi.project.DumbAware
@@ -14,7 +18,10 @@ class MermaidFileEditorProvider : FileEditorProvider, DumbAware {
     override fun createEditor(project: Project, file: VirtualFile): FileEditor {
         val editor = TextEditorProvider.getInstance().createEditor(project, file) as TextEditor
         val preview = MermaidPreviewEditor(project, file)
-        return TextEditorWithPreview(editor, preview)
+        return object : TextEditorWithPreview(editor, preview) {
+            override fun createLeftToolbarActionGroup(): ActionGroup =
+                DefaultActionGroup(RefreshPreviewAction(preview), ProfileDiagramAction(preview))
+        }
     }
 
     override fun getEditorTypeId(): String = "mermaid-split-editor"
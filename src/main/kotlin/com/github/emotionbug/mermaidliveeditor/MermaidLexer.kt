@@ -2,8 +2,16 @@ package com.github.emotionbug.mermaidliveeditor
 
 import com.intellij.lexer.LexerBase
 import com.intellij.psi.tree.IElementType
-import java.util.regex.Pattern
 
+/**
+ * Hand-written lexer for Mermaid. It scans the buffer character by character and keeps a state
+ * for the constructs that span lines, so the platform can restart it at any token that starts in
+ * [STATE_INITIAL] instead of relexing the whole file after an edit.
+ *
+ * Strings and `%%{...}%%` directives that span lines are split into one token per line, each
+ * ending after its line break; the lines after the first start in [STATE_STRING] or
+ * [STATE_DIRECTIVE].
+ */
 class MermaidLexer : LexerBase() {
     private var buffer: CharSequence = ""
     private var startOffset: Int = 0
@@ -12,31 +20,9 @@ class MermaidLexer : LexerBase() {
     private var tokenEnd: Int = 0
     private var currentToken: IElementType? = null
 
-    private val DIAGRAM_TYPES = setOf(
-        "graph", "flowchart", "sequenceDiagram", "classDiagram", "stateDiagram", "stateDiagram-v2",
-        "erDiagram", "gantt", "pie", "gitGraph", "requirementDiagram", "journey", "timeline", "mindmap"
-    )
-
-    private val DIRECTIONS = setOf("TD", "TB", "BT", "RL", "LR")
-
-    private val KEYWORDS = setOf(
-        "subgraph", "end", "click", "callback", "style", "classDef", "class", "direction",
-        "participant", "actor", "boundary", "control", "entity", "database", "collections",
-        "notes", "note", "over", "as", "rect", "autonumber", "loop", "alt", "else", "opt", "parallel", "and", "critical", "break",
-        "title", "section", "dateFormat", "axisFormat", "todayMarker", "excludes", "includes",
-        "state", "join", "fork", "choice", "PK", "FK",
-        "commit", "branch", "checkout", "merge", "tag", "cherry-pick", "reset", "revert",
-        "abstract", "static", "public", "private", "protected", "package", "namespace"
-    )
-
-    private val PATTERNS = listOf(
-        Pair(MermaidTokenTypes.COMMENT, Pattern.compile("^%%.*")),
-        Pair(MermaidTokenTypes.WHITE_SPACE, Pattern.compile("^\\s+")),
-        Pair(MermaidTokenTypes.STRING, Pattern.compile("^\"[^\"]*\"")),
-        Pair(MermaidTokenTypes.ARROW, Pattern.compile("^(?:--+>|--+|->+|==+>|==+|-\\.-?>|<-+>|<-+|<--+|<-+|--|==|\\.\\.|-)")),
-        Pair(MermaidTokenTypes.BRACKET, Pattern.compile("^[\\[\\](){}:,]|[\\[\\(]{2,}|[\\]\\)]{2,}")),
-        Pair(MermaidTokenTypes.IDENTIFIER, Pattern.compile("^[a-zA-Z\\-0-9_]+"))
-    )
+    // State at tokenStart, and the state the next token starts in.
+    private var state: Int = STATE_INITIAL
+    private var nextState: Int = STATE_INITIAL
 
     override fun start(buffer: CharSequence, startOffset: Int, endOffset: Int, initialState: Int) {
         this.buffer = buffer
@@ -44,10 +30,11 @@ class MermaidLexer : LexerBase() {
         this.endOffset = endOffset
         this.tokenStart = startOffset
         this.tokenEnd = startOffset
+        this.nextState = initialState
         advance()
     }
 
-    override fun getState(): Int = 0
+    override fun getState(): Int = state
 
     override fun getTokenType(): IElementType? = currentToken
 
@@ -56,41 +43,246 @@ class MermaidLexer : LexerBase() {
     override fun getTokenEnd(): Int = tokenEnd
 
     override fun advance() {
-        if (tokenEnd >= endOffset) {
+        tokenStart = tokenEnd
+        state = nextState
+        if (tokenStart >= endOffset) {
             currentToken = null
-            tokenStart = tokenEnd
             return
         }
 
-        tokenStart = tokenEnd
-        val remaining = buffer.subSequence(tokenStart, endOffset)
-
-        for ((type, pattern) in PATTERNS) {
-            val matcher = pattern.matcher(remaining)
-            if (matcher.find()) {
-                val match = matcher.group()
-                tokenEnd = tokenStart + match.length
-                
-                if (type == MermaidTokenTypes.IDENTIFIER) {
-                    currentToken = when {
-                        DIAGRAM_TYPES.contains(match) -> MermaidTokenTypes.DIAGRAM_TYPE
-                        DIRECTIONS.contains(match) -> MermaidTokenTypes.DIRECTION
-                        KEYWORDS.contains(match) -> MermaidTokenTypes.KEYWORD
-                        else -> MermaidTokenTypes.NODE_ID // Default to NODE_ID for better highlighting
-                    }
+        when (state) {
+            STATE_STRING -> {
+                currentToken = MermaidTokenTypes.STRING
+                tokenEnd = scanString(tokenStart)
+                return
+            }
+            STATE_DIRECTIVE -> {
+                currentToken = MermaidTokenTypes.COMMENT
+                tokenEnd = scanDirective(tokenStart)
+                return
+            }
+        }
+
+        val c = buffer[tokenStart]
+        val next = charAt(tokenStart + 1)
+        when {
+            c == '%' && next == '%' -> {
+                currentToken = MermaidTokenTypes.COMMENT
+                tokenEnd = if (charAt(tokenStart + 2) == '{') scanDirective(tokenStart + 3) else lineEnd(tokenStart + 2)
+            }
+            isWhiteSpace(c) -> {
+                var i = tokenStart + 1
+                while (i < endOffset && isWhiteSpace(buffer[i])) i++
+                currentToken = MermaidTokenTypes.WHITE_SPACE
+                tokenEnd = i
+            }
+            c == '"' -> {
+                currentToken = MermaidTokenTypes.STRING
+                tokenEnd = scanString(tokenStart + 1)
+            }
+            else -> {
+                val arrowEnd = arrowEnd(tokenStart)
+                if (arrowEnd > tokenStart) {
+                    currentToken = MermaidTokenTypes.ARROW
+                    tokenEnd = arrowEnd
+                } else if (isBracket(c)) {
+                    currentToken = MermaidTokenTypes.BRACKET
+                    tokenEnd = bracketEnd(tokenStart)
+                } else if (isIdentifierPart(c)) {
+                    tokenEnd = identifierEnd(tokenStart)
+                    currentToken = MermaidKeywords.lookup(buffer, tokenStart, tokenEnd) ?: MermaidTokenTypes.NODE_ID
                 } else {
-                    currentToken = type
+                    currentToken = MermaidTokenTypes.BAD_CHARACTER
+                    tokenEnd = tokenStart + 1
                 }
-                return
             }
         }
+    }
+
+    /** Scans string content from [from] up to and including the closing quote or the line break. */
+    private fun scanString(from: Int): Int {
+        var i = from
+        while (i < endOffset) {
+            val c = buffer[i++]
+            if (c == '"') {
+                nextState = STATE_INITIAL
+                return i
+            }
+            if (c == '\n') break
+        }
+        nextState = STATE_STRING
+        return i
+    }
+
+    /** Scans a directive from [from] up to and including `}%%` or the line break. */
+    private fun scanDirective(from: Int): Int {
+        var i = from
+        while (i < endOffset) {
+            val c = buffer[i++]
+            if (c == '}' && charAt(i) == '%' && charAt(i + 1) == '%') {
+                nextState = STATE_INITIAL
+                return i + 2
+            }
+            if (c == '\n') break
+        }
+        nextState = STATE_DIRECTIVE
+        return i
+    }
+
+    private fun lineEnd(from: Int): Int {
+        var i = from
+        while (i < endOffset && !isLineTerminator(buffer[i])) i++
+        return i
+    }
+
+    /**
+     * End of the arrow at [start], or [start] when there is none. Runs of `-` and `=` are taken
+     * whole, with a trailing `>`: `-->`, `---`, `->>`, `==>`, `===`, `-.->`, `<-->`, `<--`, `..`
+     * and a single `-`.
+     */
+    private fun arrowEnd(start: Int): Int {
+        val c = buffer[start]
+        val next = charAt(start + 1)
+        return when (c) {
+            '-' -> when (next) {
+                '-' -> runEnd(start + 1, '-').let { if (charAt(it) == '>') it + 1 else it }
+                '>' -> runEnd(start + 1, '>')
+                '.' -> when {
+                    charAt(start + 2) == '>' -> start + 3
+                    charAt(start + 2) == '-' && charAt(start + 3) == '>' -> start + 4
+                    else -> start + 1
+                }
+                else -> start + 1
+            }
+            '=' -> if (next == '=') runEnd(start + 1, '=').let { if (charAt(it) == '>') it + 1 else it } else start
+            '<' -> if (next == '-') runEnd(start + 1, '-').let { if (charAt(it) == '>') it + 1 else it } else start
+            '.' -> if (next == '.') start + 2 else start
+            else -> start
+        }
+    }
+
+    /** A run of `[[`/`((` or `]]`/`))` is one token, as in `[[subroutine]]` or `((circle))`. */
+    private fun bracketEnd(start: Int): Int {
+        val c = buffer[start]
+        val opening = c == '[' || c == '('
+        val closing = c == ']' || c == ')'
+        if (!opening && !closing) return start + 1
+        var i = start + 1
+        while (i < endOffset) {
+            val d = buffer[i]
+            if (opening && (d == '[' || d == '(') || closing && (d == ']' || d == ')')) i++ else break
+        }
+        return i
+    }
+
+    /**
+     * Identifiers may contain `-`, as in `stateDiagram-v2` or `cherry-pick`, but only between
+     * identifier characters, so `A-->B` ends the identifier before the arrow.
+     */
+    private fun identifierEnd(start: Int): Int {
+        var i = start + 1
+        while (i < endOffset) {
+            val c = buffer[i]
+            if (isIdentifierPart(c)) {
+                i++
+            } else if (c == '-' && i + 1 < endOffset && isIdentifierPart(buffer[i + 1])) {
+                i += 2
+            } else {
+                break
+            }
+        }
+        return i
+    }
 
-        // Catch-all for single characters
-        tokenEnd = tokenStart + 1
-        currentToken = MermaidTokenTypes.BAD_CHARACTER
+    private fun runEnd(from: Int, c: Char): Int {
+        var i = from
+        while (i < endOffset && buffer[i] == c) i++
+        return i
     }
 
+    private fun charAt(index: Int): Char = if (index < endOffset) buffer[index] else '\u0000'
+
     override fun getBufferSequence(): CharSequence = buffer
 
     override fun getBufferEnd(): Int = endOffset
+
+    companion object {
+        const val STATE_INITIAL = 0
+        const val STATE_STRING = 1
+        const val STATE_DIRECTIVE = 2
+
+        private fun isWhiteSpace(c: Char): Boolean =
+            c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\u000B' || c == '\u000C'
+
+        private fun isLineTerminator(c: Char): Boolean =
+            c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029'
+
+        private fun isBracket(c: Char): Boolean =
+            c == '[' || c == ']' || c == '(' || c == ')' || c == '{' || c == '}' || c == ':' || c == ','
+
+        private fun isIdentifierPart(c: Char): Boolean =
+            c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9' || c == '_'
+    }
+}
+
+/**
+ * Diagram types, directions and keywords in an open-addressing table, looked up by a hash over the
+ * buffer range so that classifying an identifier allocates nothing.
+ */
+private object MermaidKeywords {
+    private const val TABLE_SIZE = 256
+
+    private val words = arrayOfNulls<String>(TABLE_SIZE)
+    private val types = arrayOfNulls<IElementType>(TABLE_SIZE)
+
+    init {
+        add(
+            MermaidTokenTypes.DIAGRAM_TYPE,
+            "graph", "flowchart", "sequenceDiagram", "classDiagram", "stateDiagram", "stateDiagram-v2",
+            "erDiagram", "gantt", "pie", "gitGraph", "requirementDiagram", "journey", "timeline", "mindmap"
+        )
+        add(MermaidTokenTypes.DIRECTION, "TD", "TB", "BT", "RL", "LR")
+        add(
+            MermaidTokenTypes.KEYWORD,
+            "subgraph", "end", "click", "callback", "style", "classDef", "class", "direction",
+            "participant", "actor", "boundary", "control", "entity", "database", "collections",
+            "notes", "note", "over", "as", "rect", "autonumber", "loop", "alt", "else", "opt", "parallel", "and", "critical", "break",
+            "title", "section", "dateFormat", "axisFormat", "todayMarker", "excludes", "includes",
+            "state", "join", "fork", "choice", "PK", "FK",
+            "commit", "branch", "checkout", "merge", "tag", "cherry-pick", "reset", "revert",
+            "abstract", "static", "public", "private", "protected", "package", "namespace"
+        )
+    }
+
+    private fun add(type: IElementType, vararg keywords: String) {
+        for (word in keywords) {
+            var slot = hash(word, 0, word.length) and (TABLE_SIZE - 1)
+            while (words[slot] != null) slot = (slot + 1) and (TABLE_SIZE - 1)
+            words[slot] = word
+            types[slot] = type
+        }
+    }
+
+    fun lookup(text: CharSequence, start: Int, end: Int): IElementType? {
+        var slot = hash(text, start, end) and (TABLE_SIZE - 1)
+        while (true) {
+            val word = words[slot] ?: return null
+            if (matches(word, text, start, end)) return types[slot]
+            slot = (slot + 1) and (TABLE_SIZE - 1)
+        }
+    }
+
+    private fun hash(text: CharSequence, start: Int, end: Int): Int {
+        var h = 0
+        for (i in start until end) h = 31 * h + text[i].code
+        return h xor (h ushr 16)
+    }
+
+    private fun matches(word: String, text: CharSequence, start: Int, end: Int): Boolean {
+        if (word.length != end - start) return false
+        for (i in word.indices) {
+            if (word[i] != text[start + i]) return false
+        }
+        return true
+    }
 }
@@ -1,194 +1,793 @@
 package com.github.emotionbug.mermaidliveeditor
 
 import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidBrowserManager
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidBrowserOwner
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidBrowserPool
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderClient
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderMetrics
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderPriority
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderScheduler
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderWatchdog
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidResourceCache
 import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidResourceHandler
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidTextSync
 import com.github.emotionbug.mermaidliveeditor.editor.ui.MermaidPreviewPanel
 import com.google.gson.Gson
 import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer
 import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ModalityState
+import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.application.runReadAction
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.event.DocumentEvent
 import com.intellij.openapi.editor.event.DocumentListener
+import com.intellij.openapi.editor.Document
 import com.intellij.openapi.fileEditor.FileDocumentManager
+import com.intellij.openapi.fileEditor.FileDocumentManagerListener
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent
+import com.intellij.openapi.fileEditor.FileEditorManagerListener
 import com.intellij.openapi.fileEditor.FileEditor
 import com.intellij.openapi.fileEditor.FileEditorLocation
 import com.intellij.openapi.fileEditor.FileEditorState
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Disposer
 import com.intellij.openapi.util.UserDataHolderBase
 import com.intellij.openapi.util.text.StringUtil
 import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiManager
-import com.intellij.util.Alarm
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.ui.update.Activatable
+import com.intellij.util.ui.update.UiNotifyConnector
 import org.cef.browser.CefBrowser
-import org.cef.browser.CefFrame
-import org.cef.handler.CefLoadHandlerAdapter
+import java.awt.image.BufferedImage
 import java.beans.PropertyChangeListener
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import javax.swing.JComponent
 
-class MermaidPreviewEditor(private val project: Project, private val file: VirtualFile) : UserDataHolderBase(),
-    FileEditor {
+class MermaidPreviewEditor(override val project: Project, private val file: VirtualFile) : UserDataHolderBase(),
+    FileEditor, MermaidBrowserOwner, MermaidRenderClient {
     private val LOG = Logger.getInstance(MermaidPreviewEditor::class.java)
 
-    private val browserManager = MermaidBrowserManager(project, this) { lastSvg }
-    private val ui = MermaidPreviewPanel(browserManager.browser)
+    private val browserPool = MermaidBrowserPool.instance
+
+    // Leased from the pool while the preview is showing.
+    @Volatile
+    private var browserManager: MermaidBrowserManager? = null
+    private val ui = MermaidPreviewPanel { acquireBrowser() }
+    private var isShowing = false
+    private var isSelected = true
+
+    // Whether the file is the selected one of the active editor window.
+    private var isFocused = false
+
+    @Volatile
+    override var renderPriority = MermaidRenderPriority.BACKGROUND
+        private set
+
+    // Set when the text changed while the preview was hidden; it renders once when shown again.
+    private var isDirty = false
+
+    private val isPreviewVisible: Boolean
+        get() = isShowing && isSelected
+
+    // Last SVG taken from the page before its browser was released; shown at once when it returns.
+    @Volatile
+    private var snapshotSvg: String? = null
+
+    // Bitmap of the same render, shown in place of the page while the preview holds no browser.
+    @Volatile
+    private var snapshotImage: BufferedImage? = null
+
+    // Generation of the newest successful render and of the one the snapshot was taken from, so
+    // the snapshot is only fetched again when the diagram changed. The snapshot fields are EDT only.
+    @Volatile
+    private var renderedGeneration = 0L
+    private var snapshotGeneration = 0L
+
+    // Fingerprint of the snapshot's text, when known; a page starting from the same text renders
+    // nothing the snapshot does not already show.
+    private var snapshotFingerprint: Long? = null
 
     private var documentListener: DocumentListener? = null
-    private val updateAlarm = Alarm(Alarm.ThreadToUse.SWING_THREAD, this)
+    private val renderScheduler = MermaidRenderScheduler.instance
+    private val textSync = MermaidTextSync()
+
+    /** Stage latencies of the recent update round trips, shown in the status bar. */
+    val metrics = MermaidRenderMetrics()
+
+    private val nextProfileId = AtomicInteger()
+    private val pendingProfiles = ConcurrentHashMap<Int, CompletableFuture<MermaidDiagramProfile>>()
+    private val watchdog = MermaidRenderWatchdog(this) { timeoutMs, retryDelayMs ->
+        onRenderTimeout(timeoutMs, retryDelayMs)
+    }
+
+    @Volatile
     private var isSkeletonLoaded = false
+
+    @Volatile
+    private var isSkeletonLoading = false
     private var lastMermaidJsUrl: String? = null
     private val gson = Gson()
-    private var lastSvg: String? = null
 
+    // The SVG itself stays in the page; exports fetch it through the browser manager.
+    @Volatile
+    private var hasRenderedSvg = false
+
+    // Sequence number of the newest render request; results of older generations are dropped.
+    private val renderGeneration = AtomicLong()
+
+    // Fingerprint of the text of the newest render request; edits keeping it are not re-rendered.
+    @Volatile
+    private var requestedFingerprint: Long? = null
+
+    @Volatile
+    private var lastRenderFailed = false
+
+    // Configuration profile the page was last told to use.
+    @Volatile
+    private var appliedProfile = MermaidRenderProfile.STANDARD
+
+    // Smoothed parse + render time reported by the page, used as the debounce delay.
+    @Volatile
+    private var smoothedRenderMs = -1.0
+
+    // Errors last handed to the annotator; analysis is restarted only when they change.
+    private val errorsLock = Any()
+    private var publishedErrors: List<MermaidError> = emptyList()
+
+    // Renders of the current page and the number of times it was reloaded to free memory (EDT only).
+    private var rendersSincePageLoad = 0
+    private var pageRecycleCount = 0
+
+    // Length of the document at the last edit, one input of the adaptive render mode (EDT only).
+    private var documentLength = 0
+
+    /** Whether edits are held back by the ON_SAVE or MANUAL render mode. Accessed on the EDT. */
+    var isPreviewStale = false
+        private set
+
+    /**
+     * URL of the Mermaid.js build to load. Files served by [MermaidResourceHandler] carry their
+     * content hash as a version, so the browser can keep its cached copy until the content changes.
+     * May read the configured local file, so call it off the EDT.
+     */
     fun getJsUrl(): String {
-        return when (MermaidSettingsState.instance.jsSource) {
-            MermaidJsSource.BUILT_IN -> "${MermaidResourceHandler.RESOURCE_HANDLER_URL}${MermaidResourceHandler.DEFAULT_MERMAID_JS}"
-            MermaidJsSource.CDN -> MermaidSettingsState.instance.mermaidJsUrl
-            MermaidJsSource.LOCAL_FILE -> {
-                val path = MermaidSettingsState.instance.mermaidJsUrl.removePrefix("file://").removePrefix("file:/")
-                val file = java.io.File(path)
-                if (file.exists()) {
-                    "${MermaidResourceHandler.RESOURCE_HANDLER_URL}${MermaidResourceHandler.LOCAL_FILE_MERMAID_JS}"
-                } else {
-                    "${MermaidResourceHandler.RESOURCE_HANDLER_URL}${MermaidResourceHandler.DEFAULT_MERMAID_JS}"
-                }
-            }
-        }.let {
-            it.ifBlank { "${MermaidResourceHandler.RESOURCE_HANDLER_URL}${MermaidResourceHandler.DEFAULT_MERMAID_JS}" }
-        }.let {
-            // Add timestamp to prevent caching of the JS file itself
-            if (it.contains("?")) "$it&t=${System.currentTimeMillis()}" else "$it?t=${System.currentTimeMillis()}"
+        val base = MermaidResourceHandler.RESOURCE_HANDLER_URL
+        val settings = MermaidSettingsState.instance
+        if (settings.jsSource == MermaidJsSource.CDN && settings.mermaidJsUrl.isNotBlank()) {
+            return settings.mermaidJsUrl
         }
+        val local = if (settings.jsSource == MermaidJsSource.LOCAL_FILE) MermaidResourceCache.localMermaidJs() else null
+        if (local != null) {
+            return "$base${MermaidResourceHandler.LOCAL_FILE_MERMAID_JS}?v=${local.etag}"
+        }
+        val bundled = MermaidResourceCache.get(MermaidResourceHandler.DEFAULT_MERMAID_JS)
+        return "$base${MermaidResourceHandler.DEFAULT_MERMAID_JS}" + (bundled?.let { "?v=${it.etag}" } ?: "")
     }
 
-    init {
-        browserManager.jsQuery.addHandler { svg ->
-            ApplicationManager.getApplication().invokeLater {
-                lastSvg = svg
-                ui.errorLabel.isVisible = false
+    override fun hasRenderedSvg(): Boolean = hasRenderedSvg
 
-                file.putUserData(MERMAID_ERROR_KEY, null)
-                runReadAction { PsiManager.getInstance(project).findFile(file) }?.let {
-                    DaemonCodeAnalyzer.getInstance(project).restart(it)
-                }
+    override fun onRenderStarted(generation: Long) {
+        // Pooled browsers may still report for the page of a previous owner or one not set up yet.
+        if (!isSkeletonLoaded) return
+        watchdog.started(generation)
+    }
+
+    override fun onRenderAbandoned(generation: Long) {
+        if (!isSkeletonLoaded) return
+        // E.g. the text was cleared while it rendered; no result will come for this generation.
+        watchdog.finished(generation)
+        renderScheduler.finished(this, generation)
+    }
+
+    override fun onRendered(resultJson: String) {
+        if (!isSkeletonLoaded) return
+        val result = gson.fromJson(resultJson, MermaidRenderResult::class.java)
+        watchdog.finished(result.generation)
+        renderScheduler.finished(this, result.generation)
+        val sampled = result.timing?.let { metrics.rendered(result.generation, it, result.renderMs == 0.0) } == true
+        if (sampled) project.messageBus.syncPublisher(MermaidRenderMetrics.TOPIC).samplesChanged()
+        if (result.generation < renderGeneration.get()) return
+
+        // Results are handled on the query thread; only the preview's own labels wait for the EDT.
+        recordRenderTime(result.renderMs)
+        hasRenderedSvg = true
+        renderedGeneration = result.generation
+        lastRenderFailed = false
+        publishErrors(null)
+        ApplicationManager.getApplication().invokeLater {
+            ui.errorLabel.isVisible = false
+            rendersSincePageLoad++
+            updateStatus(result)
+            updateRenderModeIndicator()
+            checkPageMemory(result.memory)
+        }
+    }
+
+    override fun onError(errorJson: String) {
+        if (!isSkeletonLoaded) return
+        val errorData = try {
+            gson.fromJson(errorJson, MermaidErrorData::class.java)
+        } catch (e: Exception) {
+            try {
+                val singleError = gson.fromJson(errorJson, MermaidError::class.java)
+                MermaidErrorData(listOf(singleError))
+            } catch (e2: Exception) {
+                MermaidErrorData(listOf(MermaidError(errorJson)))
             }
-            null
         }
+        if (errorData.generation != 0L) {
+            watchdog.finished(errorData.generation)
+            renderScheduler.finished(this, errorData.generation)
+        } else {
+            // Errors of the page itself, like a Mermaid.js that failed to load, end any render.
+            renderScheduler.finished(this)
+        }
+        if (errorData.generation != 0L && errorData.generation < renderGeneration.get()) return
+
+        recordRenderTime(errorData.renderMs)
+        lastRenderFailed = errorData.errors.isNotEmpty()
+        if (publishErrors(errorData) && errorData.errors.isNotEmpty()) {
+            LOG.warn("[Mermaid Error] $errorJson")
+        }
+
+        val labelText = errorData.errors.firstOrNull()?.let { firstError ->
+            val extraCount = errorData.errors.size - 1
+            val extraText = if (extraCount > 0) "<br/>(and $extraCount more errors)" else ""
+            val escapedMessage = StringUtil.escapeXmlEntities(firstError.message)
+            "<html>Mermaid Error:<br/>${escapedMessage.replace("\n", "<br/>")}$extraText</html>"
+        }
+        ApplicationManager.getApplication().invokeLater {
+            if (labelText != null) ui.errorLabel.text = labelText
+            ui.errorLabel.isVisible = labelText != null
+            ui.revalidate()
+            ui.repaint()
+        }
+    }
+
+    /**
+     * Hands the errors of the latest render to the annotator. Highlighting of the file is only
+     * restarted when the set of errors differs from the last one. Callable from any thread.
+     * Returns whether the errors changed.
+     */
+    private fun publishErrors(errorData: MermaidErrorData?): Boolean {
+        val errors = errorData?.errors.orEmpty()
+        // Results, timeouts and cleared texts publish from different threads; the comparison and
+        // the user data must change together, or a lost update leaves stale errors behind.
+        synchronized(errorsLock) {
+            if (errors == publishedErrors) return false
+            publishedErrors = errors
+            file.putUserData(MERMAID_ERROR_KEY, errorData?.takeIf { errors.isNotEmpty() })
+        }
+        ReadAction.nonBlocking<PsiFile?> { PsiManager.getInstance(project).findFile(file) }
+            .expireWith(this)
+            .finishOnUiThread(ModalityState.any()) { psiFile ->
+                psiFile?.let { DaemonCodeAnalyzer.getInstance(project).restart(it) }
+            }
+            .submit(AppExecutorUtil.getAppExecutorService())
+        return true
+    }
+
+    override fun onResyncRequested() {
+        LOG.info("Preview text out of sync, sending full text")
+        textSync.requestFullSync()
+        renderScheduler.schedule(this, 0)
+    }
+
+    override fun onProfile(profileJson: String) {
+        val profile = gson.fromJson(profileJson, MermaidDiagramProfile::class.java)
+        pendingProfiles.remove(profile.requestId)?.complete(profile)
+    }
+
+    /**
+     * Renders the text in the preview once more with every phase timed and takes the result apart.
+     * Completes with a profile carrying an error when the preview cannot do it.
+     */
+    fun profileDiagram(): CompletableFuture<MermaidDiagramProfile> {
+        val browserManager = browserManager
+        if (browserManager == null || !isSkeletonLoaded) {
+            return CompletableFuture.completedFuture(MermaidDiagramProfile(error = "The preview is not ready."))
+        }
+        val requestId = nextProfileId.incrementAndGet()
+        val future = CompletableFuture<MermaidDiagramProfile>()
+        pendingProfiles[requestId] = future
+        val timeoutMs = MermaidSettingsState.instance.renderTimeoutSeconds.coerceAtLeast(1) * 2000L
+        future.completeOnTimeout(
+            MermaidDiagramProfile(error = "Profiling did not finish in time."), timeoutMs, TimeUnit.MILLISECONDS
+        ).whenComplete { _, _ -> pendingProfiles.remove(requestId) }
+        browserManager.browser.cefBrowser.executeJavaScript(
+            "if (window.profileDiagram) window.profileDiagram($requestId);",
+            browserManager.browser.cefBrowser.url,
+            0
+        )
+        return future
+    }
+
+    override fun onPageLoaded(browser: CefBrowser?) {
+        val browserManager = browserManager ?: return
+        LOG.info("Skeleton loaded for ${file.name}")
+
+        val onMermaidError = browserManager.errorJsQuery.inject("JSON.stringify(errorData)")
+        val onMermaidRendered =
+            browserManager.jsQuery.inject(
+                "JSON.stringify({generation: generation, size: size, renderMs: renderMs, cache: cache, " +
+                        "memory: memory, timing: timing})"
+            )
+        val onMermaidResync = browserManager.syncJsQuery.inject("'resync'")
+        val onMermaidRenderStarted = browserManager.heartbeatJsQuery.inject("'started:' + generation")
+        val onMermaidRenderAbandoned = browserManager.heartbeatJsQuery.inject("'abandoned:' + generation")
+        val onMermaidSvgChunk = browserManager.svgTransfer.injectHandler()
+        val onMermaidProfile = browserManager.profileJsQuery.inject("JSON.stringify(profile)")
+
+        ApplicationManager.getApplication().executeOnPooledThread {
+            val dispatchedAt = System.currentTimeMillis()
+            val mermaidJsUrl = getJsUrl()
+            // Reading and resetting under one read action keeps edits from slipping in between.
+            val initialText = runReadAction {
+                val document = FileDocumentManager.getInstance().getDocument(file)
+                val text = document?.immutableCharSequence ?: ""
+                textSync.reset(text)
+                text.toString()
+            }
+            val fingerprint = if (initialText.isBlank()) null else MermaidSemanticFingerprint.of(initialText)
+            requestedFingerprint = fingerprint
+            val jsonInitialText = gson.toJson(initialText)
+            val initialSvg = snapshotSvg
+            val jsonInitialSvg = gson.toJson(initialSvg)
+            val initialGeneration = renderGeneration.incrementAndGet()
+            // A text that just hung the previous renderer is shown as text only until its backoff ends.
+            val backoffMs = watchdog.backoffRemainingMs(fingerprint)
+            watchdog.requested(initialGeneration, fingerprint)
+            val profile = MermaidRenderProfiles.select(initialText)
+            appliedProfile = profile
+
+            val initJs = """
+                if (window.initialize) {
+                    window.initialize({
+                        mermaidJsUrl: '$mermaidJsUrl',
+                        onMermaidError: function(errorData) { $onMermaidError },
+                        onMermaidRendered: function(size, generation, renderMs, cache, memory, timing) {
+                            $onMermaidRendered
+                        },
+                        onMermaidSvgChunk: function(chunk) { $onMermaidSvgChunk },
+                        onMermaidProfile: function(profile) { $onMermaidProfile },
+                        onMermaidResync: function() { $onMermaidResync },
+                        onMermaidRenderStarted: function(generation) { $onMermaidRenderStarted },
+                        onMermaidRenderAbandoned: function(generation) { $onMermaidRenderAbandoned },
+                        initialText: $jsonInitialText,
+                        initialGeneration: $initialGeneration,
+                        initialRender: ${backoffMs == 0L},
+                        profileConfig: ${MermaidRenderProfiles.configJson(profile)},
+                        initialSvg: $jsonInitialSvg
+                    });
+                }
+            """.trimIndent()
+            metrics.clear()
+            metrics.dispatched(initialGeneration, 0, dispatchedAt, System.currentTimeMillis())
 
-        browserManager.errorJsQuery.addHandler { errorJson ->
             ApplicationManager.getApplication().invokeLater {
-                val errorData = try {
-                    gson.fromJson(errorJson, MermaidErrorData::class.java)
-                } catch (e: Exception) {
-                    try {
-                        val singleError = gson.fromJson(errorJson, MermaidError::class.java)
-                        MermaidErrorData(listOf(singleError))
-                    } catch (e2: Exception) {
-                        MermaidErrorData(listOf(MermaidError(errorJson)))
+                // The browser may have been released while the text was read.
+                if (this.browserManager !== browserManager) return@invokeLater
+                if (initialSvg != null && fingerprint != null && fingerprint == snapshotFingerprint) {
+                    snapshotGeneration = initialGeneration
+                }
+                browser?.executeJavaScript(initJs, browser.url, 0)
+                isSkeletonLoaded = true
+                isSkeletonLoading = false
+                rendersSincePageLoad = 0
+                // A fresh page starts from the current text, whatever the render mode.
+                isPreviewStale = false
+                if (backoffMs > 0) {
+                    scheduleRetry(backoffMs)
+                } else if (textSync.hasPendingChanges()) {
+                    // Edits made after the text was read found the page not loaded and were not sent.
+                    if (renderMode() == MermaidRenderMode.LIVE) {
+                        renderScheduler.schedule(this, 0)
+                    } else {
+                        isPreviewStale = true
                     }
                 }
+                updateRenderModeIndicator()
+            }
+        }
+    }
 
-                if (errorData.errors.isNotEmpty()) {
-                    val firstError = errorData.errors[0]
-                    val extraCount = errorData.errors.size - 1
-                    val extraText = if (extraCount > 0) "<br/>(and $extraCount more errors)" else ""
-                    val escapedMessage = StringUtil.escapeXmlEntities(firstError.message)
-                    ui.errorLabel.text =
-                        "<html>Mermaid Error:<br/>${escapedMessage.replace("\n", "<br/>")}$extraText</html>"
-                    ui.errorLabel.isVisible = true
-                    LOG.warn("[Mermaid Error] $errorJson")
-                } else {
-                    ui.errorLabel.isVisible = false
-                }
-                ui.revalidate()
-                ui.repaint()
+    override fun onBrowserRevoked() {
+        watchdog.reset()
+        renderScheduler.finished(this)
+        browserManager = null
+        isSkeletonLoaded = false
+        isSkeletonLoading = false
+        // The page is already gone; the last snapshot stands in for it.
+        ui.showPlaceholder(snapshotImage)
+    }
 
-                file.putUserData(MERMAID_ERROR_KEY, errorData)
-                runReadAction { PsiManager.getInstance(project).findFile(file) }?.let {
-                    DaemonCodeAnalyzer.getInstance(project).restart(it)
-                }
+    /** Leases a browser from the pool and loads the page into it. */
+    private fun acquireBrowser() {
+        if (browserManager != null) return
+        val manager = browserPool.acquire(this)
+        browserManager = manager
+        // Nothing this preview dispatched runs in the leased browser, and the page starts from
+        // the full text, which includes every edit made without a browser.
+        watchdog.reset()
+        isDirty = false
+        ui.showBrowser(manager.browser)
+        loadSkeleton()
+    }
+
+    /**
+     * Returns the browser to the pool once the preview is hidden. The snapshot is brought up to
+     * date first, so the page can show it immediately when the preview is shown again.
+     */
+    private fun releaseBrowser() {
+        val manager = browserManager ?: return
+        refreshSnapshot(manager) {
+            // Skipped when the preview was shown again or lost its browser in the meantime.
+            if (!isPreviewVisible && browserManager === manager) {
+                watchdog.reset()
+                renderScheduler.finished(this)
+                browserManager = null
+                isSkeletonLoaded = false
+                isSkeletonLoading = false
+                browserPool.release(this)
+                ui.showPlaceholder(snapshotImage)
             }
-            null
-        }
-
-        browserManager.browser.jbCefClient.addLoadHandler(object : CefLoadHandlerAdapter() {
-            override fun onLoadEnd(browser: CefBrowser?, frame: CefFrame?, httpStatusCode: Int) {
-                LOG.info("Skeleton loaded with status: $httpStatusCode")
-
-                val mermaidJsUrl = getJsUrl()
-                val onMermaidError = browserManager.errorJsQuery.inject("JSON.stringify(errorData)")
-                val onMermaidRendered = browserManager.jsQuery.inject("svg")
-                val gson = Gson()
-
-                ApplicationManager.getApplication().executeOnPooledThread {
-                    val initialText = runReadAction { FileDocumentManager.getInstance().getDocument(file)?.text } ?: ""
-                    val jsonInitialText = gson.toJson(initialText)
-
-                    val initJs = """
-                        if (window.initialize) {
-                            window.initialize({
-                                mermaidJsUrl: '$mermaidJsUrl',
-                                onMermaidError: function(errorData) { $onMermaidError },
-                                onMermaidRendered: function(svg) { $onMermaidRendered },
-                                initialText: $jsonInitialText
-                            });
-                        }
-                    """.trimIndent()
-
-                    ApplicationManager.getApplication().invokeLater {
-                        browser?.executeJavaScript(initJs, browser.url, 0)
-                        isSkeletonLoaded = true
-                    }
+        }
+    }
+
+    /**
+     * Fetches the SVG and a bitmap of it from the page when a newer generation rendered since the
+     * last snapshot, then runs [then] on the EDT. Called on the EDT.
+     */
+    private fun refreshSnapshot(manager: MermaidBrowserManager, then: () -> Unit) {
+        val generation = renderedGeneration
+        if (!hasRenderedSvg || !isSkeletonLoaded || generation <= snapshotGeneration) {
+            then()
+            return
+        }
+        // The fingerprint is only known to match when no newer request is pending.
+        val fingerprint = if (generation == renderGeneration.get()) requestedFingerprint else null
+        val svg = manager.svgTransfer.fetchSvg()
+            .completeOnTimeout(null, SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .exceptionally { null }
+        val image = manager.svgTransfer.fetchImage(SNAPSHOT_MAX_PIXELS)
+            .completeOnTimeout(null, SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            .exceptionally { null }
+        CompletableFuture.allOf(svg, image).whenComplete { _, _ ->
+            ApplicationManager.getApplication().invokeLater {
+                val svgText = svg.getNow(null)
+                if (svgText != null && browserManager === manager) {
+                    snapshotSvg = svgText
+                    snapshotImage = image.getNow(null)
+                    snapshotGeneration = generation
+                    snapshotFingerprint = fingerprint
                 }
+                then()
+            }
+        }
+    }
+
+    /**
+     * A render ran past the timeout. The renderer is likely stuck in a loop, which a reload of the
+     * page may not interrupt, so the browser is replaced. The new page holds the text back until
+     * [retryDelayMs] has passed.
+     */
+    private fun onRenderTimeout(timeoutMs: Long, retryDelayMs: Long) {
+        LOG.warn("Mermaid render of ${file.name} timed out after $timeoutMs ms, restarting the preview browser")
+        renderScheduler.finished(this)
+        ApplicationManager.getApplication().invokeLater {
+            if (browserManager == null) return@invokeLater
+            lastRenderFailed = true
+            val message = "Render timed out after ${timeoutMs / 1000} s. " +
+                    "Retrying in ${TimeUnit.MILLISECONDS.toSeconds(retryDelayMs)} s or after the next edit."
+            ui.errorLabel.text = "<html>Mermaid Error:<br/>${StringUtil.escapeXmlEntities(message)}</html>"
+            ui.errorLabel.isVisible = true
+            ui.statusLabel.text = ""
+            publishErrors(MermaidErrorData(listOf(MermaidError(message))))
+
+            val manager = browserPool.replace(this)
+            browserManager = manager
+            ui.showBrowser(manager.browser)
+            loadSkeleton()
+        }
+    }
+
+    private fun scheduleRetry(delayMs: Long) {
+        textSync.requestFullSync()
+        renderScheduler.schedule(this, delayMs.toInt())
+    }
+
+    init {
+        val connector = UiNotifyConnector.installOn(ui, object : Activatable {
+            override fun showNotify() {
+                isShowing = true
+                visibilityChanged()
+            }
+
+            override fun hideNotify() {
+                isShowing = false
+                visibilityChanged()
             }
-        }, browserManager.browser.cefBrowser)
+        })
+        Disposer.register(this, connector)
 
         runReadAction { FileDocumentManager.getInstance().getDocument(file) }?.let { document ->
-            updatePreview(document.text)
+            documentLength = document.textLength
+            updatePreview()
             documentListener = object : DocumentListener {
                 override fun documentChanged(event: DocumentEvent) {
-                    updateAlarm.cancelAllRequests()
-                    updateAlarm.addRequest({ updatePreview(event.document.text) }, 300)
+                    // Kept current while hidden, so the render mode is right once shown again.
+                    documentLength = event.document.textLength
+                    if (!isPreviewVisible || browserManager == null) {
+                        // Edits by refactorings or VCS to files nobody is looking at cost nothing. A
+                        // preview whose browser was taken back starts from the full text when it returns.
+                        textSync.skip(event)
+                        isDirty = true
+                        return
+                    }
+                    textSync.documentChanged(event)
+                    if (renderMode() == MermaidRenderMode.LIVE) {
+                        renderScheduler.schedule(this@MermaidPreviewEditor, previewDelayMs())
+                    } else if (!isPreviewStale) {
+                        isPreviewStale = true
+                        updateRenderModeIndicator()
+                    }
                 }
             }
             document.addDocumentListener(documentListener!!)
         }
+        updateRenderModeIndicator()
+
+        project.messageBus.connect(this)
+            .subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, object : FileEditorManagerListener {
+                override fun selectionChanged(event: FileEditorManagerEvent) {
+                    isFocused = event.newFile == file
+                    updateRenderPriority()
+                }
+            })
+
+        ApplicationManager.getApplication().messageBus.connect(this)
+            .subscribe(FileDocumentManagerListener.TOPIC, object : FileDocumentManagerListener {
+                override fun beforeDocumentSaving(document: Document) {
+                    if (isPreviewStale && renderMode() == MermaidRenderMode.ON_SAVE &&
+                        FileDocumentManager.getInstance().getFile(document) == file
+                    ) {
+                        refresh()
+                    }
+                }
+            })
 
         project.messageBus.connect(this).subscribe(MermaidSettingsState.TOPIC, MermaidSettingsListener {
             ApplicationManager.getApplication().invokeLater {
+                updateRenderModeIndicator()
                 loadSkeleton()
             }
         })
     }
 
-    private fun updatePreview(text: String) {
+    override fun selectNotify() {
+        isSelected = true
+        visibilityChanged()
+    }
+
+    override fun deselectNotify() {
+        isSelected = false
+        visibilityChanged()
+    }
+
+    /**
+     * Hidden previews drop pending work and give up their browser. Once visible again they render
+     * the latest text a single time: a fresh page starts from it anyway, and a page that was kept
+     * gets the full text as one batch.
+     */
+    private fun visibilityChanged() {
+        updateRenderPriority()
+        if (isPreviewVisible) {
+            val hadBrowser = browserManager != null
+            acquireBrowser()
+            if (hadBrowser && isDirty) {
+                if (renderMode() == MermaidRenderMode.LIVE) {
+                    renderScheduler.schedule(this, 0)
+                } else {
+                    isPreviewStale = true
+                    updateRenderModeIndicator()
+                }
+            }
+            isDirty = false
+        } else {
+            if (renderScheduler.cancel(this)) isDirty = true
+            releaseBrowser()
+        }
+    }
+
+    /** Renders the current text now. Used by the refresh button and, in ON_SAVE mode, on save. */
+    fun refresh() {
+        if (browserManager == null) {
+            acquireBrowser()
+            return
+        }
+        isPreviewStale = false
+        updateRenderModeIndicator()
+        renderScheduler.schedule(this, 0)
+    }
+
+    private fun updateRenderPriority() {
+        renderPriority = when {
+            isPreviewVisible && isFocused -> MermaidRenderPriority.FOCUSED
+            isPreviewVisible -> MermaidRenderPriority.VISIBLE
+            else -> MermaidRenderPriority.BACKGROUND
+        }
+    }
+
+    /**
+     * The configured render mode, or a cheaper one when adaptive switching is on and the document
+     * or its measured render time is past a threshold.
+     */
+    private fun renderMode(): MermaidRenderMode {
+        val settings = MermaidSettingsState.instance
+        return maxOf(settings.renderMode, adaptiveRenderMode(settings))
+    }
+
+    private fun adaptiveRenderMode(settings: MermaidSettingsState): MermaidRenderMode {
+        if (!settings.adaptiveRenderMode) return MermaidRenderMode.LIVE
+        return when {
+            documentLength >= settings.manualThresholdChars ||
+                    smoothedRenderMs >= settings.manualThresholdRenderMs -> MermaidRenderMode.MANUAL
+
+            documentLength >= settings.onSaveThresholdChars ||
+                    smoothedRenderMs >= settings.onSaveThresholdRenderMs -> MermaidRenderMode.ON_SAVE
+
+            else -> MermaidRenderMode.LIVE
+        }
+    }
+
+    private fun updateRenderModeIndicator() {
+        val settings = MermaidSettingsState.instance
+        val mode = renderMode()
+        val text = when (mode) {
+            MermaidRenderMode.LIVE -> "Live"
+            MermaidRenderMode.ON_SAVE -> "Renders on save"
+            MermaidRenderMode.MANUAL -> "Renders on refresh"
+        }
+        val reason = when {
+            mode == settings.renderMode -> ""
+            documentLength >= settings.onSaveThresholdChars -> " (large file)"
+            else -> " (slow render)"
+        }
+        ui.showRenderMode(if (isPreviewStale) "$text$reason, out of date" else "$text$reason", isPreviewStale)
+    }
+
+    private fun recordRenderTime(renderMs: Double) {
+        if (renderMs <= 0.0) return
+        smoothedRenderMs = if (smoothedRenderMs < 0) renderMs else smoothedRenderMs * 0.7 + renderMs * 0.3
+    }
+
+    private fun updateStatus(result: MermaidRenderResult) {
+        ui.statusLabel.text = if (result.renderMs > 0.0) {
+            "Rendered in ${result.renderMs.toInt()} ms"
+        } else {
+            "Rendered from cache"
+        }
+        val details = listOfNotNull(
+            result.cache?.let {
+                "Render cache: ${it.hits} hits, ${it.misses} misses, ${it.entries} entries " +
+                        "(${StringUtil.formatFileSize(it.chars * 2)})"
+            },
+            result.memory?.let {
+                "JS heap: ${StringUtil.formatFileSize(it.usedHeap)} used of ${StringUtil.formatFileSize(it.totalHeap)}, " +
+                        "${it.domNodes} DOM nodes"
+            },
+            "Render profile: $appliedProfile",
+            "Page reloaded to free memory: $pageRecycleCount times, $rendersSincePageLoad renders since last load"
+        )
+        ui.statusLabel.toolTipText = details.joinToString("<br/>", "<html>", "</html>")
+    }
+
+    /**
+     * Reloads the page once its JS heap passes the configured limit. Mermaid leaves garbage behind
+     * that the page never releases; a fresh page starts from the current text and the current SVG,
+     * so the reload is not visible beyond a reset of the zoom.
+     */
+    private fun checkPageMemory(memory: MermaidPageMemoryStats?) {
+        if (memory == null) return
+        val limit = MermaidSettingsState.instance.pageRecycleHeapMb
+            .coerceIn(MermaidSettingsState.PAGE_RECYCLE_HEAP_MB_RANGE).toLong() * 1024 * 1024
+        // A diagram that needs that much by itself would otherwise reload the page on every render.
+        if (memory.usedHeap < limit || rendersSincePageLoad < MIN_RENDERS_BEFORE_RECYCLE) return
+        val manager = browserManager ?: return
+        LOG.info("Reloading preview page of ${file.name}: JS heap at ${StringUtil.formatFileSize(memory.usedHeap)}")
+        pageRecycleCount++
+        rendersSincePageLoad = 0
+        refreshSnapshot(manager) {
+            if (browserManager === manager) loadSkeleton()
+        }
+    }
+
+    /**
+     * Debounce delay for the next update: roughly one render duration, so small diagrams follow
+     * the typing closely while slow ones are not re-rendered on every keystroke.
+     */
+    private fun previewDelayMs(): Int {
+        val settings = MermaidSettingsState.instance
+        val min = settings.minPreviewDelayMs
+        val max = settings.maxPreviewDelayMs.coerceAtLeast(min)
+        if (smoothedRenderMs < 0) return DEFAULT_PREVIEW_DELAY_MS.coerceIn(min, max)
+        return smoothedRenderMs.toInt().coerceIn(min, max)
+    }
+
+    override fun runScheduledUpdate(): Long = updatePreview()
+
+    /**
+     * Sends the pending edits to the page. Runs on a pooled thread, so building the script never
+     * blocks the EDT. Returns the generation the page was asked to render, or 0.
+     */
+    private fun updatePreview(): Long {
+        // Without a browser the edits stay queued; the next page load starts from the full text.
+        val browserManager = browserManager ?: return 0
         val settings = MermaidSettingsState.instance
         val currentUrl = when (settings.jsSource) {
             MermaidJsSource.BUILT_IN -> "BUILT_IN"
             else -> settings.mermaidJsUrl
         }
-        if (!isSkeletonLoaded || currentUrl != lastMermaidJsUrl) {
-            loadSkeleton()
-            return
+        if (currentUrl != lastMermaidJsUrl || !isSkeletonLoaded && !isSkeletonLoading) {
+            ApplicationManager.getApplication().invokeLater { loadSkeleton() }
+            return 0
         }
+        if (!isSkeletonLoaded) return 0
 
-        if (text.isBlank()) {
-            ApplicationManager.getApplication().invokeLater {
-                ui.errorLabel.isVisible = false
-                file.putUserData(MERMAID_ERROR_KEY, null)
-                runReadAction { PsiManager.getInstance(project).findFile(file) }?.let {
-                    DaemonCodeAnalyzer.getInstance(project).restart(it)
-                }
-            }
-            return
+        val batch = textSync.drain() ?: return 0
+        val dispatchedAt = System.currentTimeMillis()
+        // Blank text is still mirrored into the page, it just is not rendered.
+        val render = !batch.text.isBlank()
+        val fingerprint = if (render) MermaidSemanticFingerprint.of(batch.text) else null
+        val backoffMs = watchdog.backoffRemainingMs(fingerprint)
+        if (backoffMs > 0) {
+            // This text timed out a moment ago; mirror it without rendering and try again later.
+            val js = textSync.toScript(batch, renderGeneration.get(), false)
+            browserManager.browser.cefBrowser.executeJavaScript(js, browserManager.browser.cefBrowser.url, 0)
+            scheduleRetry(backoffMs)
+            return 0
         }
-
-        val jsonText = Gson().toJson(text)
-        val js = "if (window.updateDiagram) window.updateDiagram($jsonText);"
+        if (render && fingerprint == requestedFingerprint && !lastRenderFailed) {
+            // Only comments or whitespace changed: keep the page text in sync without rendering and
+            // without superseding a render that may still be in flight. Error positions could
+            // shift with the lines, so this shortcut is not taken while errors are shown.
+            val js = textSync.toScript(batch, renderGeneration.get(), false)
+            browserManager.browser.cefBrowser.executeJavaScript(js, browserManager.browser.cefBrowser.url, 0)
+            return 0
+        }
+        requestedFingerprint = fingerprint
+        val generation = renderGeneration.incrementAndGet()
+        watchdog.requested(generation, fingerprint)
+        val profile = if (render) MermaidRenderProfiles.select(batch.text) else appliedProfile
+        // The page switches its Mermaid config before it renders this text, without a reload.
+        val configJs = if (profile != appliedProfile) {
+            appliedProfile = profile
+            "window.applyConfig(${MermaidRenderProfiles.configJson(profile)});\n"
+        } else {
+            ""
+        }
+        val js = configJs + textSync.toScript(batch, generation, render)
+        if (render) metrics.dispatched(generation, batch.editedAt, dispatchedAt, System.currentTimeMillis())
         browserManager.browser.cefBrowser.executeJavaScript(js, browserManager.browser.cefBrowser.url, 0)
+
+        if (!render) {
+            publishErrors(null)
+            ApplicationManager.getApplication().invokeLater { ui.errorLabel.isVisible = false }
+        }
+        return if (render) generation else 0
     }
 
     private fun loadSkeleton() {
+        val browserManager = browserManager ?: return
+        // A render still running in the old page will never report.
+        watchdog.reset()
+        renderScheduler.finished(this)
         LOG.info("Loading skeleton... current URL: ${browserManager.browser.cefBrowser.url}")
         val settings = MermaidSettingsState.instance
         lastMermaidJsUrl = when (settings.jsSource) {
@@ -196,9 +795,10 @@ class MermaidPreviewEditor(private val project: Project, private val file: Virtu
             else -> settings.mermaidJsUrl
         }
         isSkeletonLoaded = false
-        // Use a timestamp to force reload even if the URL is the same
-        val url = "https://mermaid-preview/?t=${System.currentTimeMillis()}"
-        browserManager.browser.loadURL(url)
+        isSkeletonLoading = true
+        // A stable URL lets the browser revalidate the skeleton instead of fetching a new copy;
+        // loading the same URL again still reloads the page.
+        browserManager.browser.loadURL(MermaidResourceHandler.RESOURCE_HANDLER_URL)
     }
 
     override fun getFile(): VirtualFile = file
@@ -222,9 +822,21 @@ class MermaidPreviewEditor(private val project: Project, private val file: Virtu
     override fun getCurrentLocation(): FileEditorLocation? = null
 
     override fun dispose() {
+        renderScheduler.remove(this)
+        if (browserManager != null) {
+            browserManager = null
+            browserPool.release(this)
+        }
         runReadAction { FileDocumentManager.getInstance().getDocument(file) }?.let {
             documentListener?.let { listener -> it.removeDocumentListener(listener) }
         }
         ui.dispose()
     }
+
+    companion object {
+        private const val DEFAULT_PREVIEW_DELAY_MS = 300
+        private const val SNAPSHOT_TIMEOUT_MS = 2000L
+        private const val SNAPSHOT_MAX_PIXELS = 4 * 1024 * 1024
+        private const val MIN_RENDERS_BEFORE_RECYCLE = 20
+    }
 }
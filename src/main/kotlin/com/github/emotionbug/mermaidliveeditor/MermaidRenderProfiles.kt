@@ -0,0 +1,53 @@
+package com.github.emotionbug.mermaidliveeditor
+
+import com.google.gson.JsonObject
+import com.google.gson.JsonParser
+
+/**
+ * Picks the Mermaid configuration profile for a diagram by its size, and resolves the
+ * configuration overrides of each profile from the settings. The preview page merges the
+ * overrides into its base configuration.
+ */
+object MermaidRenderProfiles {
+    fun select(text: CharSequence): MermaidRenderProfile {
+        val settings = MermaidSettingsState.instance
+        val length = text.length
+        val lines = lineCount(text)
+        return when {
+            length >= settings.hugeProfileThresholdChars || lines >= settings.hugeProfileThresholdLines ->
+                MermaidRenderProfile.HUGE
+
+            length >= settings.largeProfileThresholdChars || lines >= settings.largeProfileThresholdLines ->
+                MermaidRenderProfile.LARGE
+
+            else -> MermaidRenderProfile.STANDARD
+        }
+    }
+
+    /** The overrides of [profile] as a JSON object literal; an invalid setting counts as no overrides. */
+    fun configJson(profile: MermaidRenderProfile): String {
+        val settings = MermaidSettingsState.instance
+        val overrides = when (profile) {
+            MermaidRenderProfile.STANDARD -> return "{}"
+            MermaidRenderProfile.LARGE -> settings.largeProfileConfig
+            MermaidRenderProfile.HUGE -> settings.hugeProfileConfig
+        }
+        return (parse(overrides) ?: JsonObject()).toString()
+    }
+
+    /** Parses a profile setting, or returns `null` when it is not a JSON object. */
+    fun parse(json: String): JsonObject? {
+        if (json.isBlank()) return JsonObject()
+        return try {
+            JsonParser.parseString(json).takeIf { it.isJsonObject }?.asJsonObject
+        } catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun lineCount(text: CharSequence): Int {
+        var lines = 1
+        for (i in text.indices) if (text[i] == '\n') lines++
+        return lines
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.emotionbug.mermaidliveeditor
+
+/**
+ * Hash of a diagram with everything Mermaid ignores left out, so edits that cannot change the
+ * rendered output (comment lines, blank lines, trailing or repeated whitespace) keep the same value.
+ *
+ * The text is tokenized with [MermaidLexer]. `%%` comments are dropped only when they start a line;
+ * `%%{...}%%` directives are kept. Indentation is dropped, except in diagram types where it defines
+ * the structure. A YAML front matter block at the top is hashed as is.
+ */
+object MermaidSemanticFingerprint {
+    private val INDENTATION_SENSITIVE_TYPES = setOf("mindmap", "kanban", "treemap-beta", "treemap")
+
+    private const val FNV_OFFSET = -0x340d631b7bdddcdbL
+    private const val FNV_PRIME = 0x100000001b3L
+
+    private class Hasher {
+        var hash = FNV_OFFSET
+
+        fun add(c: Char) {
+            hash = (hash xor c.code.toLong()) * FNV_PRIME
+        }
+
+        fun add(text: CharSequence, start: Int = 0, end: Int = text.length) {
+            for (i in start until end) add(text[i])
+        }
+    }
+
+    fun of(text: CharSequence): Long {
+        val hasher = Hasher()
+        val bodyStart = frontMatterEnd(text)
+        hasher.add(text, 0, bodyStart)
+
+        val lexer = MermaidLexer()
+        lexer.start(text, bodyStart, text.length, 0)
+
+        var diagramType: String? = null
+        var lineHasContent = false
+        var hasContent = false
+        var pendingSpace = false
+        var indentStart = bodyStart
+        var indentEnd = bodyStart
+
+        while (true) {
+            val type = lexer.tokenType ?: break
+            val start = lexer.tokenStart
+            val end = lexer.tokenEnd
+
+            if (type == MermaidTokenTypes.WHITE_SPACE) {
+                val lastNewline = lastIndexOf(text, '\n', start, end)
+                if (lastNewline >= 0) {
+                    lineHasContent = false
+                    pendingSpace = false
+                    indentStart = lastNewline + 1
+                    indentEnd = end
+                } else if (lineHasContent) {
+                    pendingSpace = true
+                } else {
+                    indentStart = start
+                    indentEnd = end
+                }
+            } else if (type == MermaidTokenTypes.COMMENT && !lineHasContent && !isDirective(text, start, end)) {
+                // A full-line comment, dropped like a blank line.
+            } else {
+                if (lineHasContent) {
+                    if (pendingSpace) hasher.add(' ')
+                } else {
+                    // Line breaks are only emitted between lines with content, so blank and
+                    // comment lines as well as trailing newlines leave no trace.
+                    if (hasContent) hasher.add('\n')
+                    if (diagramType in INDENTATION_SENSITIVE_TYPES) hasher.add(text, indentStart, indentEnd)
+                }
+                if (diagramType == null && type != MermaidTokenTypes.COMMENT) {
+                    diagramType = text.subSequence(start, end).toString()
+                }
+                hasher.add(text, start, end)
+                lineHasContent = true
+                hasContent = true
+                pendingSpace = false
+            }
+            lexer.advance()
+        }
+        return hasher.hash
+    }
+
+    private fun isDirective(text: CharSequence, start: Int, end: Int): Boolean {
+        return end - start > 2 && text[start + 2] == '{'
+    }
+
+    /** Offset just past a leading `---` ... `---` block, or 0 when the text has none. */
+    private fun frontMatterEnd(text: CharSequence): Int {
+        if (!lineEquals(text, 0, "---")) return 0
+        var lineStart = nextLineStart(text, 0)
+        while (lineStart < text.length) {
+            if (lineEquals(text, lineStart, "---")) return nextLineStart(text, lineStart)
+            lineStart = nextLineStart(text, lineStart)
+        }
+        return 0
+    }
+
+    private fun lineEquals(text: CharSequence, lineStart: Int, expected: String): Boolean {
+        var end = nextLineStart(text, lineStart)
+        while (end > lineStart && text[end - 1].isWhitespace()) end--
+        if (end - lineStart != expected.length) return false
+        for (i in expected.indices) if (text[lineStart + i] != expected[i]) return false
+        return true
+    }
+
+    private fun nextLineStart(text: CharSequence, from: Int): Int {
+        val newline = indexOf(text, '\n', from, text.length)
+        return if (newline < 0) text.length else newline + 1
+    }
+
+    private fun indexOf(text: CharSequence, c: Char, start: Int, end: Int): Int {
+        for (i in start until end) if (text[i] == c) return i
+        return -1
+    }
+
+    private fun lastIndexOf(text: CharSequence, c: Char, start: Int, end: Int): Int {
+        for (i in end - 1 downTo start) if (text[i] == c) return i
+        return -1
+    }
+}
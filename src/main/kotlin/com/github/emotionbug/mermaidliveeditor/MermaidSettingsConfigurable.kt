@@ -2,19 +2,47 @@ package com.github.emotionbug.mermaidliveeditor
 
 import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory
 import com.intellij.openapi.options.Configurable
+import com.intellij.openapi.options.ConfigurationException
 import com.intellij.openapi.ui.ComboBox
 import com.intellij.openapi.ui.TextFieldWithBrowseButton
+import com.intellij.ui.components.JBCheckBox
+import com.intellij.ui.components.JBTextArea
 import com.intellij.ui.components.JBTextField
+import com.intellij.ui.dsl.builder.AlignX
 import com.intellij.ui.dsl.builder.Cell
 import com.intellij.ui.dsl.builder.Row
 import com.intellij.ui.dsl.builder.panel
 import javax.swing.DefaultComboBoxModel
 import javax.swing.JComponent
+import javax.swing.JLabel
 
 class MermaidSettingsConfigurable : Configurable {
     private var jsSourceCombo: ComboBox<MermaidJsSource>? = null
     private var mermaidJsUrlField: JBTextField? = null
     private var mermaidJsFileField: TextFieldWithBrowseButton? = null
+    private var minPreviewDelayField: JBTextField? = null
+    private var maxPreviewDelayField: JBTextField? = null
+    private var maxPreviewBrowsersField: JBTextField? = null
+    private var renderTimeoutField: JBTextField? = null
+    private var maxConcurrentRendersField: JBTextField? = null
+    private var pageRecycleHeapField: JBTextField? = null
+    private var renderModeCombo: ComboBox<MermaidRenderMode>? = null
+    private var adaptiveRenderModeCheckBox: JBCheckBox? = null
+    private var onSaveThresholdCharsField: JBTextField? = null
+    private var onSaveThresholdRenderMsField: JBTextField? = null
+    private var manualThresholdCharsField: JBTextField? = null
+    private var manualThresholdRenderMsField: JBTextField? = null
+    private var largeProfileCharsField: JBTextField? = null
+    private var largeProfileLinesField: JBTextField? = null
+    private var hugeProfileCharsField: JBTextField? = null
+    private var hugeProfileLinesField: JBTextField? = null
+    private var largeProfileConfigArea: JBTextArea? = null
+    private var hugeProfileConfigArea: JBTextArea? = null
+    private var prewarmExportCheckBox: JBCheckBox? = null
+    private var exportDriverPathField: TextFieldWithBrowseButton? = null
+    private var exportBrowserPathField: TextFieldWithBrowseButton? = null
+    private var offlineExportCheckBox: JBCheckBox? = null
+    private var exportEngineStateLabel: JLabel? = null
 
     private lateinit var urlRow: Row
     private lateinit var fileRow: Row
@@ -55,10 +83,218 @@ class MermaidSettingsConfigurable : Configurable {
                     .component
             }
 
+            group("Preview") {
+                row("Minimum update delay (ms):") {
+                    minPreviewDelayField = intTextField(MermaidSettingsState.MIN_PREVIEW_DELAY_RANGE)
+                        .applyToComponent {
+                            text = settings.minPreviewDelayMs.toString()
+                        }
+                        .component
+                }
+
+                row("Maximum update delay (ms):") {
+                    maxPreviewDelayField = intTextField(MermaidSettingsState.MAX_PREVIEW_DELAY_RANGE)
+                        .applyToComponent {
+                            text = settings.maxPreviewDelayMs.toString()
+                        }
+                        .comment("The delay after typing adapts to the measured render time of each diagram within these bounds")
+                        .component
+                }
+
+                row("Maximum preview browsers:") {
+                    maxPreviewBrowsersField = intTextField(MermaidSettingsState.MAX_PREVIEW_BROWSERS_RANGE)
+                        .applyToComponent {
+                            text = settings.maxPreviewBrowsers.toString()
+                        }
+                        .comment("Visible previews share this many browser processes; hidden previews release theirs")
+                        .component
+                }
+
+                row("Render timeout (s):") {
+                    renderTimeoutField = intTextField(MermaidSettingsState.RENDER_TIMEOUT_SECONDS_RANGE)
+                        .applyToComponent {
+                            text = settings.renderTimeoutSeconds.toString()
+                        }
+                        .comment("A render running longer than this restarts the preview browser")
+                        .component
+                }
+
+                row("Maximum concurrent renders:") {
+                    maxConcurrentRendersField = intTextField(MermaidSettingsState.MAX_CONCURRENT_RENDERS_RANGE)
+                        .applyToComponent {
+                            text = settings.maxConcurrentRenders.toString()
+                        }
+                        .comment("Further previews wait their turn; the one being edited goes first")
+                        .component
+                }
+
+                row("Reload preview page above JS heap (MB):") {
+                    pageRecycleHeapField = intTextField(MermaidSettingsState.PAGE_RECYCLE_HEAP_MB_RANGE)
+                        .applyToComponent {
+                            text = settings.pageRecycleHeapMb.toString()
+                        }
+                        .comment("Long editing sessions grow the page's memory; reloading it with the current text frees it")
+                        .component
+                }
+            }
+
+            group("Render Mode") {
+                row("Render edits:") {
+                    renderModeCombo = comboBox(DefaultComboBoxModel(MermaidRenderMode.entries.toTypedArray()))
+                        .applyToComponent {
+                            selectedItem = settings.renderMode
+                        }
+                        .comment("LIVE renders while typing, ON_SAVE when the file is saved, MANUAL only from the preview's refresh button")
+                        .component
+                }
+
+                row {
+                    adaptiveRenderModeCheckBox = checkBox("Switch large or slow diagrams to a cheaper mode")
+                        .applyToComponent {
+                            isSelected = settings.adaptiveRenderMode
+                        }
+                        .component
+                }
+
+                row("ON_SAVE above (characters):") {
+                    onSaveThresholdCharsField = intTextField(MermaidSettingsState.THRESHOLD_CHARS_RANGE)
+                        .applyToComponent {
+                            text = settings.onSaveThresholdChars.toString()
+                        }
+                        .component
+                }
+
+                row("ON_SAVE above render time (ms):") {
+                    onSaveThresholdRenderMsField = intTextField(MermaidSettingsState.THRESHOLD_RENDER_MS_RANGE)
+                        .applyToComponent {
+                            text = settings.onSaveThresholdRenderMs.toString()
+                        }
+                        .component
+                }
+
+                row("MANUAL above (characters):") {
+                    manualThresholdCharsField = intTextField(MermaidSettingsState.THRESHOLD_CHARS_RANGE)
+                        .applyToComponent {
+                            text = settings.manualThresholdChars.toString()
+                        }
+                        .component
+                }
+
+                row("MANUAL above render time (ms):") {
+                    manualThresholdRenderMsField = intTextField(MermaidSettingsState.THRESHOLD_RENDER_MS_RANGE)
+                        .applyToComponent {
+                            text = settings.manualThresholdRenderMs.toString()
+                        }
+                        .comment("Render times are the smoothed measurements of each preview")
+                        .component
+                }
+            }
+
+            group("Render Profiles") {
+                row("LARGE from (characters / lines):") {
+                    largeProfileCharsField = intTextField(MermaidSettingsState.THRESHOLD_CHARS_RANGE)
+                        .applyToComponent {
+                            text = settings.largeProfileThresholdChars.toString()
+                        }
+                        .component
+                    largeProfileLinesField = intTextField(MermaidSettingsState.THRESHOLD_LINES_RANGE)
+                        .applyToComponent {
+                            text = settings.largeProfileThresholdLines.toString()
+                        }
+                        .component
+                }
+
+                row("LARGE Mermaid config:") {
+                    largeProfileConfigArea = textArea()
+                        .rows(3)
+                        .align(AlignX.FILL)
+                        .applyToComponent {
+                            text = settings.largeProfileConfig
+                        }
+                        .component
+                }
+
+                row("HUGE from (characters / lines):") {
+                    hugeProfileCharsField = intTextField(MermaidSettingsState.THRESHOLD_CHARS_RANGE)
+                        .applyToComponent {
+                            text = settings.hugeProfileThresholdChars.toString()
+                        }
+                        .component
+                    hugeProfileLinesField = intTextField(MermaidSettingsState.THRESHOLD_LINES_RANGE)
+                        .applyToComponent {
+                            text = settings.hugeProfileThresholdLines.toString()
+                        }
+                        .component
+                }
+
+                row("HUGE Mermaid config:") {
+                    hugeProfileConfigArea = textArea()
+                        .rows(3)
+                        .align(AlignX.FILL)
+                        .applyToComponent {
+                            text = settings.hugeProfileConfig
+                        }
+                        .comment("JSON merged into the preview's mermaid.initialize() config, e.g. raised maxTextSize and maxEdges, htmlLabels off or another layout")
+                        .component
+                }
+            }
+
+            group("PPTX Export") {
+                row("Export engine:") {
+                    exportEngineStateLabel = label(exportEngineState())
+                        .comment("Exports are instant once the engine is warm; a cold engine is started by the first export")
+                        .component
+                }
+
+                row {
+                    prewarmExportCheckBox = checkBox("Pre-warm the PPTX export browser")
+                        .applyToComponent {
+                            isSelected = settings.prewarmExportBrowser
+                        }
+                        .comment("Launch the headless browser in the background when a project containing Mermaid files opens, so the first export starts immediately")
+                        .component
+                }
+
+                row("Edge driver binary:") {
+                    exportDriverPathField = textFieldWithBrowseButton(
+                        fileChooserDescriptor = FileChooserDescriptorFactory.createSingleFileNoJarsDescriptor().withTitle("Select msedgedriver Binary")
+                    )
+                        .applyToComponent {
+                            text = settings.exportDriverPath
+                        }
+                        .comment("Leave empty to let WebDriverManager resolve a matching driver")
+                        .component
+                }
+
+                row("Edge browser binary:") {
+                    exportBrowserPathField = textFieldWithBrowseButton(
+                        fileChooserDescriptor = FileChooserDescriptorFactory.createSingleFileNoJarsDescriptor().withTitle("Select Microsoft Edge Binary")
+                    )
+                        .applyToComponent {
+                            text = settings.exportBrowserPath
+                        }
+                        .comment("Leave empty to use the installed Microsoft Edge")
+                        .component
+                }
+
+                row {
+                    offlineExportCheckBox = checkBox("Offline mode")
+                        .applyToComponent {
+                            isSelected = settings.offlineExport
+                        }
+                        .comment("Never download drivers or query version metadata. Uses the driver binary above, or msedgedriver from PATH")
+                        .component
+                }
+            }
+
             updateVisibleRows()
         }
     }
 
+    private fun exportEngineState(): String {
+        return MermaidExportBrowser.getInstance().state.displayName.replaceFirstChar { it.uppercase() }
+    }
+
     private fun updateVisibleRows() {
         val selected = jsSourceCombo?.selectedItem as? MermaidJsSource
         urlRow.visible(selected == MermaidJsSource.CDN)
@@ -69,13 +305,40 @@ class MermaidSettingsConfigurable : Configurable {
         val settings = MermaidSettingsState.instance
         val selectedSource = jsSourceCombo?.selectedItem as? MermaidJsSource
         if (selectedSource != settings.jsSource) return true
-        
+        if (minPreviewDelayField?.text?.toIntOrNull() != settings.minPreviewDelayMs) return true
+        if (maxPreviewDelayField?.text?.toIntOrNull() != settings.maxPreviewDelayMs) return true
+        if (maxPreviewBrowsersField?.text?.toIntOrNull() != settings.maxPreviewBrowsers) return true
+        if (renderTimeoutField?.text?.toIntOrNull() != settings.renderTimeoutSeconds) return true
+        if (maxConcurrentRendersField?.text?.toIntOrNull() != settings.maxConcurrentRenders) return true
+        if (pageRecycleHeapField?.text?.toIntOrNull() != settings.pageRecycleHeapMb) return true
+        if (renderModeCombo?.selectedItem != settings.renderMode) return true
+        if (adaptiveRenderModeCheckBox?.isSelected != settings.adaptiveRenderMode) return true
+        if (onSaveThresholdCharsField?.text?.toIntOrNull() != settings.onSaveThresholdChars) return true
+        if (onSaveThresholdRenderMsField?.text?.toIntOrNull() != settings.onSaveThresholdRenderMs) return true
+        if (manualThresholdCharsField?.text?.toIntOrNull() != settings.manualThresholdChars) return true
+        if (manualThresholdRenderMsField?.text?.toIntOrNull() != settings.manualThresholdRenderMs) return true
+        if (largeProfileCharsField?.text?.toIntOrNull() != settings.largeProfileThresholdChars) return true
+        if (largeProfileLinesField?.text?.toIntOrNull() != settings.largeProfileThresholdLines) return true
+        if (hugeProfileCharsField?.text?.toIntOrNull() != settings.hugeProfileThresholdChars) return true
+        if (hugeProfileLinesField?.text?.toIntOrNull() != settings.hugeProfileThresholdLines) return true
+        if (largeProfileConfigArea?.text != settings.largeProfileConfig) return true
+        if (hugeProfileConfigArea?.text != settings.hugeProfileConfig) return true
+        if (prewarmExportCheckBox?.isSelected != settings.prewarmExportBrowser) return true
+        if (exportDriverPathField?.text != settings.exportDriverPath) return true
+        if (exportBrowserPathField?.text != settings.exportBrowserPath) return true
+        if (offlineExportCheckBox?.isSelected != settings.offlineExport) return true
+
         val currentUrl = if (selectedSource == MermaidJsSource.CDN) mermaidJsUrlField?.text else mermaidJsFileField?.text
         return currentUrl != settings.mermaidJsUrl
     }
 
     override fun apply() {
         val settings = MermaidSettingsState.instance
+        for ((name, area) in listOf("LARGE" to largeProfileConfigArea, "HUGE" to hugeProfileConfigArea)) {
+            if (MermaidRenderProfiles.parse(area?.text ?: "") == null) {
+                throw ConfigurationException("The $name Mermaid config must be a JSON object.")
+            }
+        }
         val selectedSource = jsSourceCombo?.selectedItem as? MermaidJsSource ?: MermaidJsSource.BUILT_IN
         settings.jsSource = selectedSource
         settings.mermaidJsUrl = when (selectedSource) {
@@ -83,6 +346,58 @@ class MermaidSettingsConfigurable : Configurable {
             MermaidJsSource.LOCAL_FILE -> mermaidJsFileField?.text ?: ""
             else -> ""
         }
+        settings.minPreviewDelayMs = intValue(
+            minPreviewDelayField, MermaidSettingsState.MIN_PREVIEW_DELAY_RANGE, MermaidSettingsState.DEFAULT_MIN_PREVIEW_DELAY_MS
+        )
+        settings.maxPreviewDelayMs = intValue(
+            maxPreviewDelayField, MermaidSettingsState.MAX_PREVIEW_DELAY_RANGE, MermaidSettingsState.DEFAULT_MAX_PREVIEW_DELAY_MS
+        ).coerceAtLeast(settings.minPreviewDelayMs)
+        settings.maxPreviewBrowsers = intValue(
+            maxPreviewBrowsersField, MermaidSettingsState.MAX_PREVIEW_BROWSERS_RANGE, MermaidSettingsState.DEFAULT_MAX_PREVIEW_BROWSERS
+        )
+        settings.renderTimeoutSeconds = intValue(
+            renderTimeoutField, MermaidSettingsState.RENDER_TIMEOUT_SECONDS_RANGE, MermaidSettingsState.DEFAULT_RENDER_TIMEOUT_SECONDS
+        )
+        settings.maxConcurrentRenders = intValue(
+            maxConcurrentRendersField, MermaidSettingsState.MAX_CONCURRENT_RENDERS_RANGE, MermaidSettingsState.DEFAULT_MAX_CONCURRENT_RENDERS
+        )
+        settings.pageRecycleHeapMb = intValue(
+            pageRecycleHeapField, MermaidSettingsState.PAGE_RECYCLE_HEAP_MB_RANGE, MermaidSettingsState.DEFAULT_PAGE_RECYCLE_HEAP_MB
+        )
+        settings.renderMode = renderModeCombo?.selectedItem as? MermaidRenderMode ?: MermaidRenderMode.LIVE
+        settings.adaptiveRenderMode = adaptiveRenderModeCheckBox?.isSelected ?: true
+        settings.onSaveThresholdChars = intValue(
+            onSaveThresholdCharsField, MermaidSettingsState.THRESHOLD_CHARS_RANGE, MermaidSettingsState.DEFAULT_ON_SAVE_THRESHOLD_CHARS
+        )
+        settings.onSaveThresholdRenderMs = intValue(
+            onSaveThresholdRenderMsField, MermaidSettingsState.THRESHOLD_RENDER_MS_RANGE, MermaidSettingsState.DEFAULT_ON_SAVE_THRESHOLD_RENDER_MS
+        )
+        settings.manualThresholdChars = intValue(
+            manualThresholdCharsField, MermaidSettingsState.THRESHOLD_CHARS_RANGE, MermaidSettingsState.DEFAULT_MANUAL_THRESHOLD_CHARS
+        )
+        settings.manualThresholdRenderMs = intValue(
+            manualThresholdRenderMsField, MermaidSettingsState.THRESHOLD_RENDER_MS_RANGE, MermaidSettingsState.DEFAULT_MANUAL_THRESHOLD_RENDER_MS
+        )
+        settings.largeProfileThresholdChars = intValue(
+            largeProfileCharsField, MermaidSettingsState.THRESHOLD_CHARS_RANGE, MermaidSettingsState.DEFAULT_LARGE_PROFILE_THRESHOLD_CHARS
+        )
+        settings.largeProfileThresholdLines = intValue(
+            largeProfileLinesField, MermaidSettingsState.THRESHOLD_LINES_RANGE, MermaidSettingsState.DEFAULT_LARGE_PROFILE_THRESHOLD_LINES
+        )
+        settings.hugeProfileThresholdChars = intValue(
+            hugeProfileCharsField, MermaidSettingsState.THRESHOLD_CHARS_RANGE, MermaidSettingsState.DEFAULT_HUGE_PROFILE_THRESHOLD_CHARS
+        )
+        settings.hugeProfileThresholdLines = intValue(
+            hugeProfileLinesField, MermaidSettingsState.THRESHOLD_LINES_RANGE, MermaidSettingsState.DEFAULT_HUGE_PROFILE_THRESHOLD_LINES
+        )
+        // Show the numbers as stored, so the form does not stay modified after a clamped value.
+        resetNumberFields(settings)
+        settings.largeProfileConfig = largeProfileConfigArea?.text ?: MermaidSettingsState.DEFAULT_LARGE_PROFILE_CONFIG
+        settings.hugeProfileConfig = hugeProfileConfigArea?.text ?: MermaidSettingsState.DEFAULT_HUGE_PROFILE_CONFIG
+        settings.prewarmExportBrowser = prewarmExportCheckBox?.isSelected ?: false
+        settings.exportDriverPath = exportDriverPathField?.text ?: ""
+        settings.exportBrowserPath = exportBrowserPathField?.text ?: ""
+        settings.offlineExport = offlineExportCheckBox?.isSelected ?: false
         com.intellij.openapi.application.ApplicationManager.getApplication().messageBus.syncPublisher(MermaidSettingsState.TOPIC).settingsChanged()
     }
 
@@ -91,12 +406,67 @@ class MermaidSettingsConfigurable : Configurable {
         jsSourceCombo?.selectedItem = settings.jsSource
         mermaidJsUrlField?.text = settings.mermaidJsUrl
         mermaidJsFileField?.text = settings.mermaidJsUrl
+        resetNumberFields(settings)
+        renderModeCombo?.selectedItem = settings.renderMode
+        adaptiveRenderModeCheckBox?.isSelected = settings.adaptiveRenderMode
+        largeProfileConfigArea?.text = settings.largeProfileConfig
+        hugeProfileConfigArea?.text = settings.hugeProfileConfig
+        prewarmExportCheckBox?.isSelected = settings.prewarmExportBrowser
+        exportDriverPathField?.text = settings.exportDriverPath
+        exportBrowserPathField?.text = settings.exportBrowserPath
+        offlineExportCheckBox?.isSelected = settings.offlineExport
+        exportEngineStateLabel?.text = exportEngineState()
         updateVisibleRows()
     }
 
+    /** The number in [field], or [default] when there is none, clamped to [range]. */
+    private fun intValue(field: JBTextField?, range: IntRange, default: Int): Int {
+        return (field?.text?.trim()?.toIntOrNull() ?: default).coerceIn(range)
+    }
+
+    private fun resetNumberFields(settings: MermaidSettingsState) {
+        minPreviewDelayField?.text = settings.minPreviewDelayMs.toString()
+        maxPreviewDelayField?.text = settings.maxPreviewDelayMs.toString()
+        maxPreviewBrowsersField?.text = settings.maxPreviewBrowsers.toString()
+        renderTimeoutField?.text = settings.renderTimeoutSeconds.toString()
+        maxConcurrentRendersField?.text = settings.maxConcurrentRenders.toString()
+        pageRecycleHeapField?.text = settings.pageRecycleHeapMb.toString()
+        onSaveThresholdCharsField?.text = settings.onSaveThresholdChars.toString()
+        onSaveThresholdRenderMsField?.text = settings.onSaveThresholdRenderMs.toString()
+        manualThresholdCharsField?.text = settings.manualThresholdChars.toString()
+        manualThresholdRenderMsField?.text = settings.manualThresholdRenderMs.toString()
+        largeProfileCharsField?.text = settings.largeProfileThresholdChars.toString()
+        largeProfileLinesField?.text = settings.largeProfileThresholdLines.toString()
+        hugeProfileCharsField?.text = settings.hugeProfileThresholdChars.toString()
+        hugeProfileLinesField?.text = settings.hugeProfileThresholdLines.toString()
+    }
+
     override fun disposeUIResources() {
         jsSourceCombo = null
         mermaidJsUrlField = null
         mermaidJsFileField = null
+        minPreviewDelayField = null
+        maxPreviewDelayField = null
+        maxPreviewBrowsersField = null
+        renderTimeoutField = null
+        maxConcurrentRendersField = null
+        pageRecycleHeapField = null
+        renderModeCombo = null
+        adaptiveRenderModeCheckBox = null
+        onSaveThresholdCharsField = null
+        onSaveThresholdRenderMsField = null
+        manualThresholdCharsField = null
+        manualThresholdRenderMsField = null
+        largeProfileCharsField = null
+        largeProfileLinesField = null
+        hugeProfileCharsField = null
+        hugeProfileLinesField = null
+        largeProfileConfigArea = null
+        hugeProfileConfigArea = null
+        prewarmExportCheckBox = null
+        exportDriverPathField = null
+        exportBrowserPathField = null
+        offlineExportCheckBox = null
+        exportEngineStateLabel = null
     }
 }
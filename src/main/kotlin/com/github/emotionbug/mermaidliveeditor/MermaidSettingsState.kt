@@ -16,6 +16,20 @@ enum class MermaidJsSource {
     LOCAL_FILE
 }
 
+/** When the preview renders edits, from the most to the least eager. */
+enum class MermaidRenderMode {
+    LIVE,
+    ON_SAVE,
+    MANUAL
+}
+
+/** Mermaid configuration profiles, chosen by the size of the diagram. */
+enum class MermaidRenderProfile {
+    STANDARD,
+    LARGE,
+    HUGE
+}
+
 @State(
     name = "com.github.emotionbug.mermaidliveeditor.MermaidSettingsState",
     storages = [Storage("MermaidLiveEditorSettings.xml")]
@@ -23,16 +37,92 @@ enum class MermaidJsSource {
 class MermaidSettingsState : PersistentStateComponent<MermaidSettingsState> {
     var jsSource: MermaidJsSource = MermaidJsSource.BUILT_IN
     var mermaidJsUrl: String = ""
+    var minPreviewDelayMs: Int = DEFAULT_MIN_PREVIEW_DELAY_MS
+    var maxPreviewDelayMs: Int = DEFAULT_MAX_PREVIEW_DELAY_MS
+    var maxPreviewBrowsers: Int = DEFAULT_MAX_PREVIEW_BROWSERS
+    var renderTimeoutSeconds: Int = DEFAULT_RENDER_TIMEOUT_SECONDS
+    var maxConcurrentRenders: Int = DEFAULT_MAX_CONCURRENT_RENDERS
+    var pageRecycleHeapMb: Int = DEFAULT_PAGE_RECYCLE_HEAP_MB
+    var renderMode: MermaidRenderMode = MermaidRenderMode.LIVE
+    var adaptiveRenderMode: Boolean = true
+    var onSaveThresholdChars: Int = DEFAULT_ON_SAVE_THRESHOLD_CHARS
+    var onSaveThresholdRenderMs: Int = DEFAULT_ON_SAVE_THRESHOLD_RENDER_MS
+    var manualThresholdChars: Int = DEFAULT_MANUAL_THRESHOLD_CHARS
+    var manualThresholdRenderMs: Int = DEFAULT_MANUAL_THRESHOLD_RENDER_MS
+    var largeProfileThresholdChars: Int = DEFAULT_LARGE_PROFILE_THRESHOLD_CHARS
+    var largeProfileThresholdLines: Int = DEFAULT_LARGE_PROFILE_THRESHOLD_LINES
+    var hugeProfileThresholdChars: Int = DEFAULT_HUGE_PROFILE_THRESHOLD_CHARS
+    var hugeProfileThresholdLines: Int = DEFAULT_HUGE_PROFILE_THRESHOLD_LINES
+    var largeProfileConfig: String = DEFAULT_LARGE_PROFILE_CONFIG
+    var hugeProfileConfig: String = DEFAULT_HUGE_PROFILE_CONFIG
+    var prewarmExportBrowser: Boolean = false
+    var exportDriverPath: String = ""
+    var exportBrowserPath: String = ""
+    var offlineExport: Boolean = false
 
     override fun getState(): MermaidSettingsState = this
 
     override fun loadState(state: MermaidSettingsState) {
         jsSource = state.jsSource
         mermaidJsUrl = state.mermaidJsUrl
+        minPreviewDelayMs = state.minPreviewDelayMs
+        maxPreviewDelayMs = state.maxPreviewDelayMs
+        maxPreviewBrowsers = state.maxPreviewBrowsers
+        renderTimeoutSeconds = state.renderTimeoutSeconds
+        maxConcurrentRenders = state.maxConcurrentRenders
+        pageRecycleHeapMb = state.pageRecycleHeapMb
+        renderMode = state.renderMode
+        adaptiveRenderMode = state.adaptiveRenderMode
+        onSaveThresholdChars = state.onSaveThresholdChars
+        onSaveThresholdRenderMs = state.onSaveThresholdRenderMs
+        manualThresholdChars = state.manualThresholdChars
+        manualThresholdRenderMs = state.manualThresholdRenderMs
+        largeProfileThresholdChars = state.largeProfileThresholdChars
+        largeProfileThresholdLines = state.largeProfileThresholdLines
+        hugeProfileThresholdChars = state.hugeProfileThresholdChars
+        hugeProfileThresholdLines = state.hugeProfileThresholdLines
+        largeProfileConfig = state.largeProfileConfig
+        hugeProfileConfig = state.hugeProfileConfig
+        prewarmExportBrowser = state.prewarmExportBrowser
+        exportDriverPath = state.exportDriverPath
+        exportBrowserPath = state.exportBrowserPath
+        offlineExport = state.offlineExport
     }
 
     companion object {
         const val MERMAID_JS_DEFAULT_NAME = "mermaid_11.12.0.min.js"
+        const val DEFAULT_MIN_PREVIEW_DELAY_MS = 50
+        const val DEFAULT_MAX_PREVIEW_DELAY_MS = 1500
+        const val DEFAULT_MAX_PREVIEW_BROWSERS = 3
+        const val DEFAULT_RENDER_TIMEOUT_SECONDS = 10
+        const val DEFAULT_MAX_CONCURRENT_RENDERS = 2
+        const val DEFAULT_PAGE_RECYCLE_HEAP_MB = 512
+        const val DEFAULT_ON_SAVE_THRESHOLD_CHARS = 50_000
+        const val DEFAULT_ON_SAVE_THRESHOLD_RENDER_MS = 1_000
+        const val DEFAULT_MANUAL_THRESHOLD_CHARS = 200_000
+        const val DEFAULT_MANUAL_THRESHOLD_RENDER_MS = 5_000
+        const val DEFAULT_LARGE_PROFILE_THRESHOLD_CHARS = 20_000
+        const val DEFAULT_LARGE_PROFILE_THRESHOLD_LINES = 500
+        const val DEFAULT_HUGE_PROFILE_THRESHOLD_CHARS = 100_000
+        const val DEFAULT_HUGE_PROFILE_THRESHOLD_LINES = 2_000
+
+        // Bounds of the numeric settings, as offered by the settings form.
+        val MIN_PREVIEW_DELAY_RANGE = 0..10_000
+        val MAX_PREVIEW_DELAY_RANGE = 0..60_000
+        val MAX_PREVIEW_BROWSERS_RANGE = 1..16
+        val RENDER_TIMEOUT_SECONDS_RANGE = 1..300
+        val MAX_CONCURRENT_RENDERS_RANGE = 1..16
+        val PAGE_RECYCLE_HEAP_MB_RANGE = 64..4096
+        val THRESHOLD_CHARS_RANGE = 1..100_000_000
+        val THRESHOLD_LINES_RANGE = 1..10_000_000
+        val THRESHOLD_RENDER_MS_RANGE = 1..600_000
+
+        // Mermaid rejects texts over 50,000 characters and graphs over 500 edges by default.
+        const val DEFAULT_LARGE_PROFILE_CONFIG =
+            "{\"maxTextSize\": 500000, \"maxEdges\": 2000}"
+        const val DEFAULT_HUGE_PROFILE_CONFIG =
+            "{\"maxTextSize\": 5000000, \"maxEdges\": 20000, \"htmlLabels\": false, " +
+                    "\"flowchart\": {\"htmlLabels\": false, \"curve\": \"linear\"}}"
 
         val TOPIC = Topic.create("Mermaid Settings Changed", MermaidSettingsListener::class.java)
 
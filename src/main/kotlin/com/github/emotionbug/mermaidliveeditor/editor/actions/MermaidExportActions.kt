@@ -1,54 +1,118 @@
 package com.github.emotionbug.mermaidliveeditor.editor.actions
 
+import com.github.emotionbug.mermaidliveeditor.MermaidExportBrowser
 import com.github.emotionbug.mermaidliveeditor.MermaidSvg2Pptx
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidSvgSource
 import com.intellij.openapi.actionSystem.ActionUpdateThread
 import com.intellij.openapi.actionSystem.AnAction
 import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.application.WriteAction
+import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.fileChooser.FileChooserFactory
 import com.intellij.openapi.fileChooser.FileSaverDescriptor
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.ui.Messages
 import com.intellij.openapi.util.io.FileUtil
 import com.intellij.openapi.vfs.VirtualFile
+import java.io.ByteArrayOutputStream
+import java.io.File
 
-class SaveSvgAction(private val project: Project, private val lastSvgProvider: () -> String?) :
+/** Fetches the SVG from the preview, then hands it to [write] on the EDT. */
+private fun withFetchedSvg(project: Project, svgSource: MermaidSvgSource, write: (String) -> Unit) {
+    svgSource.fetchSvg().whenComplete { svg, error ->
+        ApplicationManager.getApplication().invokeLater {
+            if (error != null) {
+                Logger.getInstance(MermaidSvgSource::class.java).warn("Failed to fetch SVG from the preview", error)
+                Messages.showErrorDialog(project, "Could not get the diagram from the preview.", "Mermaid Export")
+                return@invokeLater
+            }
+            if (svg != null) write(svg)
+        }
+    }
+}
+
+class SaveSvgAction(private val project: Project, private val svgSource: MermaidSvgSource) :
     AnAction("Save SVG As...") {
     override fun getActionUpdateThread(): ActionUpdateThread = ActionUpdateThread.BGT
 
     override fun actionPerformed(e: AnActionEvent) {
-        val svg = lastSvgProvider() ?: return
+        if (!svgSource.hasSvg()) return
         val descriptor = FileSaverDescriptor("Save SVG As", "Save the rendered diagram as an SVG file", "svg")
         val dialog = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
         val fileWrapper = dialog.save(null as VirtualFile?, "diagram.svg")
         if (fileWrapper != null) {
-            WriteAction.run<Exception> {
-                FileUtil.writeToFile(fileWrapper.file, svg)
+            val target: File = fileWrapper.file
+            withFetchedSvg(project, svgSource) { svg ->
+                WriteAction.run<Exception> {
+                    FileUtil.writeToFile(target, svg)
+                }
             }
         }
     }
 
     override fun update(e: AnActionEvent) {
-        e.presentation.isEnabled = lastSvgProvider() != null
+        e.presentation.isEnabled = svgSource.hasSvg()
     }
 }
 
-class SavePptxAction(private val project: Project, private val lastSvgProvider: () -> String?) :
+class SavePptxAction(private val project: Project, private val svgSource: MermaidSvgSource) :
     AnAction("Save PPTX As...") {
     override fun getActionUpdateThread(): ActionUpdateThread = ActionUpdateThread.BGT
 
     override fun actionPerformed(e: AnActionEvent) {
-        val svg = lastSvgProvider() ?: return
+        if (!svgSource.hasSvg()) return
         val descriptor = FileSaverDescriptor("Save PPTX As", "Save the rendered diagram as a PPTX file", "pptx")
         val dialog = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
         val fileWrapper = dialog.save(null as VirtualFile?, "diagram.pptx")
         if (fileWrapper != null) {
-            WriteAction.run<Exception> {
-                MermaidSvg2Pptx.generate(svg, fileWrapper.file)
-            }
+            val target: File = fileWrapper.file
+            withFetchedSvg(project, svgSource) { svg -> ExportPptxTask(project, svg, target).queue() }
         }
     }
 
     override fun update(e: AnActionEvent) {
-        e.presentation.isEnabled = lastSvgProvider() != null
+        e.presentation.isEnabled = svgSource.hasSvg()
+    }
+}
+
+/**
+ * Converts the SVG in the background, where starting the export browser or waiting for its
+ * warm-up blocks nothing; only writing the finished file takes a write action.
+ */
+private class ExportPptxTask(project: Project, private val svg: String, private val target: File) :
+    Task.Backgroundable(project, "Exporting PPTX", true) {
+    private var pptx: ByteArray? = null
+
+    override fun run(indicator: ProgressIndicator) {
+        val browser = MermaidExportBrowser.getInstance()
+        if (browser.state == MermaidExportBrowser.State.WARMING) {
+            indicator.text = "Waiting for the export browser to start"
+            while (browser.state == MermaidExportBrowser.State.WARMING) {
+                indicator.checkCanceled()
+                Thread.sleep(WARM_UP_POLL_MS)
+            }
+        }
+        indicator.checkCanceled()
+        indicator.text = "Converting the diagram"
+        pptx = ByteArrayOutputStream().also { MermaidSvg2Pptx.generate(svg, it) }.toByteArray()
+    }
+
+    override fun onSuccess() {
+        val data = pptx ?: return
+        WriteAction.run<Exception> {
+            FileUtil.writeToFile(target, data)
+        }
+    }
+
+    override fun onThrowable(error: Throwable) {
+        Logger.getInstance(ExportPptxTask::class.java).warn("PPTX export failed", error)
+        Messages.showErrorDialog(project, "Could not export the diagram: ${error.message}", "Mermaid Export")
+    }
+
+    companion object {
+        private const val WARM_UP_POLL_MS = 100L
     }
 }
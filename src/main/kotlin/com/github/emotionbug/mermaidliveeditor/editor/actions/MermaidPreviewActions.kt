@@ -0,0 +1,37 @@
+package com.github.emotionbug.mermaidliveeditor.editor.actions
+
+import com.github.emotionbug.mermaidliveeditor.MermaidPreviewEditor
+import com.github.emotionbug.mermaidliveeditor.editor.ui.MermaidProfilerToolWindowFactory
+import com.intellij.icons.AllIcons
+import com.intellij.openapi.actionSystem.ActionUpdateThread
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.project.DumbAwareAction
+
+/** Renders the current text in the preview, whatever its render mode. */
+class RefreshPreviewAction(private val preview: MermaidPreviewEditor) :
+    DumbAwareAction("Refresh Preview", "Render the current text in the Mermaid preview", AllIcons.Actions.Refresh) {
+    override fun getActionUpdateThread(): ActionUpdateThread = ActionUpdateThread.EDT
+
+    override fun actionPerformed(e: AnActionEvent) {
+        preview.refresh()
+    }
+
+    override fun update(e: AnActionEvent) {
+        e.presentation.text = if (preview.isPreviewStale) "Refresh Preview (Out of Date)" else "Refresh Preview"
+    }
+}
+
+/** Times each render phase of the diagram in the preview and shows the breakdown in a tool window. */
+class ProfileDiagramAction(private val preview: MermaidPreviewEditor) :
+    DumbAwareAction("Profile Diagram", "Measure where the time of rendering this diagram goes", AllIcons.Actions.Profile) {
+    override fun getActionUpdateThread(): ActionUpdateThread = ActionUpdateThread.EDT
+
+    override fun actionPerformed(e: AnActionEvent) {
+        preview.profileDiagram().thenAccept { profile ->
+            ApplicationManager.getApplication().invokeLater {
+                MermaidProfilerToolWindowFactory.show(preview.project, preview.file.name, profile)
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.emotionbug.mermaidliveeditor.editor.browser
 
+import com.github.emotionbug.mermaidliveeditor.MermaidExportBrowser
 import com.github.emotionbug.mermaidliveeditor.editor.actions.SavePptxAction
 import com.github.emotionbug.mermaidliveeditor.editor.actions.SaveSvgAction
 import com.intellij.openapi.Disposable
@@ -7,8 +8,6 @@ import com.intellij.openapi.actionSystem.ActionManager
 import com.intellij.openapi.actionSystem.DefaultActionGroup
 import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.diagnostic.Logger
-import com.intellij.openapi.project.Project
-import com.intellij.openapi.util.Disposer
 import com.intellij.ui.jcef.JBCefBrowser
 import com.intellij.ui.jcef.JBCefBrowserBase
 import com.intellij.ui.jcef.JBCefJSQuery
@@ -20,26 +19,70 @@ import org.cef.callback.CefMenuModel
 import org.cef.handler.*
 import org.cef.misc.BoolRef
 import org.cef.network.CefRequest
-import java.net.URLConnection
 import javax.swing.SwingUtilities
 
-class MermaidBrowserManager(
-    private val project: Project,
-    parentDisposable: Disposable,
-    private val svgGetter: () -> String?
-) : Disposable {
+/**
+ * A preview browser with its page callbacks. Instances are pooled by [MermaidBrowserPool]; every
+ * callback is forwarded to the current [owner] and dropped while the browser is idle.
+ */
+class MermaidBrowserManager : Disposable {
     private val LOG = Logger.getInstance(MermaidBrowserManager::class.java)
 
+    @Volatile
+    var owner: MermaidBrowserOwner? = null
+
     val browser = JBCefBrowser()
     val jsQuery = JBCefJSQuery.create(browser as JBCefBrowserBase)
     val errorJsQuery = JBCefJSQuery.create(browser as JBCefBrowserBase)
+    val syncJsQuery = JBCefJSQuery.create(browser as JBCefBrowserBase)
+    val heartbeatJsQuery = JBCefJSQuery.create(browser as JBCefBrowserBase)
+    val profileJsQuery = JBCefJSQuery.create(browser as JBCefBrowserBase)
+    private val svgJsQuery = JBCefJSQuery.create(browser as JBCefBrowserBase)
+    val svgTransfer = MermaidSvgTransfer(browser, svgJsQuery) { owner?.hasRenderedSvg() ?: false }
 
     init {
-        Disposer.register(parentDisposable, this)
         setupHandlers()
     }
 
     private fun setupHandlers() {
+        jsQuery.addHandler { resultJson ->
+            owner?.onRendered(resultJson)
+            null
+        }
+        errorJsQuery.addHandler { errorJson ->
+            owner?.onError(errorJson)
+            null
+        }
+        syncJsQuery.addHandler {
+            owner?.onResyncRequested()
+            null
+        }
+        profileJsQuery.addHandler { profileJson ->
+            owner?.onProfile(profileJson)
+            null
+        }
+        // Render heartbeats arrive as "started:<generation>" or "abandoned:<generation>".
+        heartbeatJsQuery.addHandler { event ->
+            val generation = event.substringAfter(':').toLongOrNull()
+            if (generation != null) {
+                when (event.substringBefore(':')) {
+                    "started" -> owner?.onRenderStarted(generation)
+                    "abandoned" -> owner?.onRenderAbandoned(generation)
+                }
+            }
+            null
+        }
+
+        browser.jbCefClient.addLoadHandler(object : CefLoadHandlerAdapter() {
+            override fun onLoadEnd(browser: CefBrowser?, frame: CefFrame?, httpStatusCode: Int) {
+                // Ignore the about:blank page an idle browser is parked on.
+                if (frame?.isMain == false || browser?.url?.startsWith(MermaidResourceHandler.RESOURCE_HANDLER_URL) != true) {
+                    return
+                }
+                owner?.onPageLoaded(browser)
+            }
+        }, browser.cefBrowser)
+
         browser.jbCefClient.addRequestHandler(object : CefRequestHandlerAdapter() {
             override fun getResourceRequestHandler(
                 browser: CefBrowser?,
@@ -95,8 +138,9 @@ class MermaidBrowserManager(
                 model: CefMenuModel?
             ) {
                 model?.clear()
+                if (owner == null) return
                 model?.addItem(CefMenuModel.MenuId.MENU_ID_USER_FIRST, "Save as SVG")
-                model?.addItem(CefMenuModel.MenuId.MENU_ID_USER_FIRST + 1, "Save as PPTX")
+                model?.addItem(CefMenuModel.MenuId.MENU_ID_USER_FIRST + 1, "Save as PPTX${exportBrowserStateSuffix()}")
                 model?.addSeparator()
                 model?.addItem(CefMenuModel.MenuId.MENU_ID_USER_FIRST + 3, "Reset View")
                 model?.addSeparator()
@@ -110,11 +154,12 @@ class MermaidBrowserManager(
                 commandId: Int,
                 eventFlags: Int
             ): Boolean {
+                val project = owner?.project ?: return false
                 when (commandId) {
                     CefMenuModel.MenuId.MENU_ID_USER_FIRST -> {
                         ApplicationManager.getApplication().invokeLater {
                             val group = DefaultActionGroup()
-                            group.add(SaveSvgAction(project, svgGetter))
+                            group.add(SaveSvgAction(project, svgTransfer))
                             val popupMenu =
                                 ActionManager.getInstance().createActionPopupMenu("MermaidBrowserPopupMenu", group)
                             val component = this@MermaidBrowserManager.browser.component
@@ -131,7 +176,7 @@ class MermaidBrowserManager(
                     CefMenuModel.MenuId.MENU_ID_USER_FIRST + 1 -> {
                         ApplicationManager.getApplication().invokeLater {
                             val group = DefaultActionGroup()
-                            group.add(SavePptxAction(project, svgGetter))
+                            group.add(SavePptxAction(project, svgTransfer))
                             val popupMenu =
                                 ActionManager.getInstance().createActionPopupMenu("MermaidBrowserPopupMenu", group)
                             val component = this@MermaidBrowserManager.browser.component
@@ -164,68 +209,55 @@ class MermaidBrowserManager(
         }, browser.cefBrowser)
     }
 
+    private fun exportBrowserStateSuffix(): String {
+        return " (export engine ${MermaidExportBrowser.getInstance().state.displayName})"
+    }
+
     override fun dispose() {
         jsQuery.dispose()
         errorJsQuery.dispose()
+        syncJsQuery.dispose()
+        heartbeatJsQuery.dispose()
+        profileJsQuery.dispose()
+        svgJsQuery.dispose()
         browser.dispose()
     }
 }
 
 class MermaidResourceHandler : CefResourceHandlerAdapter() {
-    private var data: ByteArray? = null
+    private var resource: MermaidResourceCache.Resource? = null
+    private var notModified = false
     private var offset = 0
-    private var mimeType: String? = null
 
     companion object {
         val RESOURCE_HANDLER_URL = "https://mermaid-preview/"
 
         val DEFAULT_MERMAID_JS = "mermaid.min.js"
         val LOCAL_FILE_MERMAID_JS = "external-mermaid.js"
+        val SKELETON_HTML = "mermaid_preview.html"
+
+        // Scripts are requested with their content hash in the URL, so a cached copy never goes stale.
+        private const val VERSIONED_CACHE_CONTROL = "public, max-age=31536000, immutable"
+        private const val UNVERSIONED_CACHE_CONTROL = "no-cache"
     }
 
     override fun processRequest(request: CefRequest?, callback: org.cef.callback.CefCallback?): Boolean {
         val url = request?.url ?: return false
         // Extract path, ignoring query parameters
         val urlWithoutQuery = url.split("?")[0]
-        val path = urlWithoutQuery.removePrefix(RESOURCE_HANDLER_URL).ifEmpty { "mermaid_preview.html" }
-        val resourcePath = if (path.startsWith("/")) path else "/$path"
+        val path = urlWithoutQuery.removePrefix(RESOURCE_HANDLER_URL).removePrefix("/").ifEmpty { SKELETON_HTML }
+        val ifNoneMatch = request.getHeaderByName("If-None-Match")
 
         // Reset state for new request
-        data = null
+        resource = null
+        notModified = false
         offset = 0
-        mimeType = null
 
         ApplicationManager.getApplication().executeOnPooledThread {
-            // Handle bundled mermaid.min.js
-            if (path == DEFAULT_MERMAID_JS) {
-                val defaultName = com.github.emotionbug.mermaidliveeditor.MermaidSettingsState.MERMAID_JS_DEFAULT_NAME
-                val stream =
-                    javaClass.classLoader.getResourceAsStream(defaultName) ?: javaClass.getResourceAsStream("/$defaultName")
-                if (stream != null) {
-                    data = stream.use { it.readBytes() }
-                    mimeType = "application/javascript"
-                    callback?.Continue()
-                    return@executeOnPooledThread
-                }
-            }
-
-            // Handle external local files
-            if (path == LOCAL_FILE_MERMAID_JS) {
-                val settingsPath = com.github.emotionbug.mermaidliveeditor.MermaidSettingsState.instance.mermaidJsUrl
-                val filePath = settingsPath.removePrefix("file://").removePrefix("file:/")
-                val file = java.io.File(filePath)
-                if (file.exists()) {
-                    data = file.readBytes()
-                    mimeType = "application/javascript"
-                    callback?.Continue()
-                    return@executeOnPooledThread
-                }
-            }
-
-            val stream = javaClass.classLoader.getResourceAsStream(path) ?: javaClass.getResourceAsStream(resourcePath)
-            if (stream != null) {
-                data = stream.use { it.readBytes() }
-                mimeType = URLConnection.guessContentTypeFromName(resourcePath) ?: "text/html"
+            val found = MermaidResourceCache.get(path)
+            if (found != null) {
+                resource = found
+                notModified = ifNoneMatch == etagHeader(found)
                 callback?.Continue()
             } else {
                 callback?.cancel()
@@ -234,14 +266,22 @@ class MermaidResourceHandler : CefResourceHandlerAdapter() {
         return true
     }
 
+    private fun etagHeader(resource: MermaidResourceCache.Resource) = "\"${resource.etag}\""
+
     override fun getResponseHeaders(
         response: org.cef.network.CefResponse?,
         responseLength: org.cef.misc.IntRef?,
         redirectUrl: org.cef.misc.StringRef?
     ) {
-        response?.mimeType = mimeType
-        response?.status = 200
-        responseLength?.set(data?.size ?: 0)
+        val current = resource
+        response?.mimeType = current?.mimeType
+        response?.status = if (notModified) 304 else 200
+        if (current != null) {
+            val cacheControl =
+                if (current.mimeType == "application/javascript") VERSIONED_CACHE_CONTROL else UNVERSIONED_CACHE_CONTROL
+            response?.setHeaderMap(mapOf("Cache-Control" to cacheControl, "ETag" to etagHeader(current)))
+        }
+        responseLength?.set(if (notModified) 0 else current?.data?.size ?: 0)
     }
 
     override fun readResponse(
@@ -250,8 +290,8 @@ class MermaidResourceHandler : CefResourceHandlerAdapter() {
         bytesRead: org.cef.misc.IntRef?,
         callback: org.cef.callback.CefCallback?
     ): Boolean {
-        val currentData = data
-        if (currentData == null) {
+        val currentData = resource?.data
+        if (currentData == null || notModified) {
             bytesRead?.set(0)
             return false
         }
@@ -0,0 +1,32 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.intellij.openapi.project.Project
+import org.cef.browser.CefBrowser
+
+/**
+ * A preview that currently holds a browser from [MermaidBrowserPool]. Page callbacks of a pooled
+ * [MermaidBrowserManager] are dispatched to its owner.
+ */
+interface MermaidBrowserOwner {
+    val project: Project
+
+    fun hasRenderedSvg(): Boolean
+
+    fun onPageLoaded(browser: CefBrowser?)
+
+    fun onRenderStarted(generation: Long)
+
+    /** A started render was superseded and stopped without reporting a result. */
+    fun onRenderAbandoned(generation: Long)
+
+    fun onRendered(resultJson: String)
+
+    fun onError(errorJson: String)
+
+    fun onResyncRequested()
+
+    fun onProfile(profileJson: String)
+
+    /** The pool handed this owner's browser to another preview. */
+    fun onBrowserRevoked()
+}
@@ -0,0 +1,96 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.github.emotionbug.mermaidliveeditor.MermaidSettingsState
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.Disposer
+
+/**
+ * Shares a small number of JCEF browsers between all Mermaid previews.
+ *
+ * Only previews that are showing hold a browser. When more previews are showing than the pool
+ * allows, the one that has held its browser the longest gives it up. Released browsers are kept
+ * on `about:blank` for reuse, up to the configured pool size. All methods must be called on the EDT.
+ */
+class MermaidBrowserPool : Disposable {
+    private val LOG = Logger.getInstance(MermaidBrowserPool::class.java)
+
+    private val idle = ArrayDeque<MermaidBrowserManager>()
+
+    // Iteration order is lease order, oldest first.
+    private val leased = LinkedHashMap<MermaidBrowserOwner, MermaidBrowserManager>()
+
+    private val maxBrowsers: Int
+        get() = MermaidSettingsState.instance.maxPreviewBrowsers.coerceAtLeast(1)
+
+    /** Returns the browser leased to [owner], leasing one first if it holds none. */
+    fun acquire(owner: MermaidBrowserOwner): MermaidBrowserManager {
+        ApplicationManager.getApplication().assertIsDispatchThread()
+        leased[owner]?.let { return it }
+
+        val manager = idle.removeFirstOrNull() ?: if (leased.size < maxBrowsers) {
+            LOG.info("Creating preview browser ${leased.size + 1} of $maxBrowsers")
+            MermaidBrowserManager()
+        } else {
+            revokeOldest()
+        }
+        manager.owner = owner
+        leased[owner] = manager
+        return manager
+    }
+
+    /** Gives the browser of [owner] back to the pool. Does nothing if it holds none. */
+    fun release(owner: MermaidBrowserOwner) {
+        ApplicationManager.getApplication().assertIsDispatchThread()
+        val manager = leased.remove(owner) ?: return
+        recycle(manager)
+    }
+
+    /**
+     * Disposes the browser of [owner] and leases it another one. Used when its renderer hangs,
+     * which a reload of the same page might not get out of.
+     */
+    fun replace(owner: MermaidBrowserOwner): MermaidBrowserManager {
+        ApplicationManager.getApplication().assertIsDispatchThread()
+        leased.remove(owner)?.let {
+            it.owner = null
+            Disposer.dispose(it)
+        }
+        return acquire(owner)
+    }
+
+    fun leaseOf(owner: MermaidBrowserOwner): MermaidBrowserManager? = leased[owner]
+
+    private fun revokeOldest(): MermaidBrowserManager {
+        val (victim, manager) = leased.entries.first().toPair()
+        leased.remove(victim)
+        LOG.info("Preview browser pool exhausted, taking the browser from ${victim.project.name}")
+        manager.owner = null
+        victim.onBrowserRevoked()
+        return manager
+    }
+
+    private fun recycle(manager: MermaidBrowserManager) {
+        manager.owner = null
+        if (leased.size + idle.size >= maxBrowsers) {
+            Disposer.dispose(manager)
+            return
+        }
+        // Drop the page so an idle browser does not keep the diagram and Mermaid in memory.
+        manager.browser.loadURL("about:blank")
+        idle.addLast(manager)
+    }
+
+    override fun dispose() {
+        idle.forEach { Disposer.dispose(it) }
+        idle.clear()
+        leased.values.forEach { Disposer.dispose(it) }
+        leased.clear()
+    }
+
+    companion object {
+        val instance: MermaidBrowserPool
+            get() = ApplicationManager.getApplication().getService(MermaidBrowserPool::class.java)
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.intellij.util.messages.Topic
+import java.util.Locale
+
+/** Stage timestamps reported by the preview page with a render result, in wall-clock milliseconds. */
+data class MermaidPageTiming(
+    val receivedAt: Double = 0.0,
+    val startedAt: Double = 0.0,
+    val parseMs: Double = 0.0,
+    val renderMs: Double = 0.0,
+    val domMs: Double = 0.0,
+    val sentAt: Double = 0.0
+)
+
+/**
+ * Durations of the stages of one preview round trip, in milliseconds:
+ * the debounce from the first edit to the update, building the script, the IPC to the page,
+ * waiting behind an earlier render, `mermaid.parse`, `mermaid.render` (layout), inserting the SVG
+ * into the DOM and the IPC of the result back to the IDE.
+ */
+class MermaidRenderSample(
+    val generation: Long,
+    val timestamp: Long,
+    val stages: DoubleArray,
+    val fromCache: Boolean
+) {
+    val totalMs: Double get() = stages.sum()
+
+    companion object {
+        val STAGE_NAMES = listOf("debounce", "script", "toPage", "queue", "parse", "render", "dom", "toIde")
+    }
+}
+
+fun interface MermaidRenderMetricsListener {
+    fun samplesChanged()
+}
+
+/**
+ * Keeps the latest round trip samples of one preview. Update requests are registered with
+ * [dispatched] and matched by generation when their result arrives.
+ */
+class MermaidRenderMetrics {
+    private class Dispatch(val editedAt: Long, val dispatchedAt: Long, val scriptReadyAt: Long)
+
+    private val lock = Any()
+    private val dispatches = object : LinkedHashMap<Long, Dispatch>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Dispatch>) = size > MAX_PENDING
+    }
+    private val samples = ArrayDeque<MermaidRenderSample>()
+
+    /** An update for [generation] was sent; [editedAt] is 0 when no edit caused it. */
+    fun dispatched(generation: Long, editedAt: Long, dispatchedAt: Long, scriptReadyAt: Long) {
+        synchronized(lock) {
+            dispatches[generation] = Dispatch(if (editedAt > 0) editedAt else dispatchedAt, dispatchedAt, scriptReadyAt)
+        }
+    }
+
+    /** Records the result of [generation]; returns `false` when its dispatch is unknown. */
+    fun rendered(generation: Long, timing: MermaidPageTiming, fromCache: Boolean): Boolean {
+        val receivedAt = System.currentTimeMillis()
+        synchronized(lock) {
+            val dispatch = dispatches.remove(generation) ?: return false
+            // Older generations were superseded and will never report.
+            dispatches.keys.removeIf { it < generation }
+            val stages = doubleArrayOf(
+                (dispatch.dispatchedAt - dispatch.editedAt).toDouble(),
+                (dispatch.scriptReadyAt - dispatch.dispatchedAt).toDouble(),
+                timing.receivedAt - dispatch.scriptReadyAt,
+                timing.startedAt - timing.receivedAt,
+                timing.parseMs,
+                timing.renderMs,
+                timing.domMs,
+                receivedAt - timing.sentAt
+            )
+            // The clocks of both processes are the same wall clock, but rounding can go below zero.
+            for (i in stages.indices) stages[i] = stages[i].coerceAtLeast(0.0)
+            samples.addLast(MermaidRenderSample(generation, receivedAt, stages, fromCache))
+            if (samples.size > MAX_SAMPLES) samples.removeFirst()
+            return true
+        }
+    }
+
+    fun clear() {
+        synchronized(lock) {
+            dispatches.clear()
+        }
+    }
+
+    fun snapshot(): List<MermaidRenderSample> = synchronized(lock) { samples.toList() }
+
+    /** Tab-separated dump of all samples, one per line, with a header. */
+    fun dump(): String {
+        val builder = StringBuilder()
+        builder.append("timestamp\tgeneration\tfromCache\t")
+        builder.append(MermaidRenderSample.STAGE_NAMES.joinToString("\t")).append("\ttotal\n")
+        for (sample in snapshot()) {
+            builder.append(sample.timestamp).append('\t')
+                .append(sample.generation).append('\t')
+                .append(sample.fromCache).append('\t')
+            for (stage in sample.stages) builder.append(format(stage)).append('\t')
+            builder.append(format(sample.totalMs)).append('\n')
+        }
+        return builder.toString()
+    }
+
+    private fun format(ms: Double) = String.format(Locale.ROOT, "%.1f", ms)
+
+    companion object {
+        private const val MAX_PENDING = 16
+        private const val MAX_SAMPLES = 500
+
+        val TOPIC = Topic.create("Mermaid Render Metrics", MermaidRenderMetricsListener::class.java)
+
+        /** The value below which [percentile] percent of [values] lie, by nearest rank. */
+        fun percentile(values: List<Double>, percentile: Int): Double {
+            if (values.isEmpty()) return 0.0
+            val sorted = values.sorted()
+            val rank = Math.ceil(percentile / 100.0 * sorted.size).toInt().coerceIn(1, sorted.size)
+            return sorted[rank - 1]
+        }
+    }
+}
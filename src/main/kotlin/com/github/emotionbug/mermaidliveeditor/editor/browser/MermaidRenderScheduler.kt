@@ -0,0 +1,280 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.github.emotionbug.mermaidliveeditor.MermaidSettingsState
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.PriorityQueue
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/** Order in which waiting previews get a render slot. */
+enum class MermaidRenderPriority {
+    FOCUSED,
+    VISIBLE,
+    BACKGROUND
+}
+
+/** A preview whose updates go through [MermaidRenderScheduler]. */
+interface MermaidRenderClient {
+    /** Read whenever the client waits for a slot, so focus changes apply to queued requests. */
+    val renderPriority: MermaidRenderPriority
+
+    /**
+     * Sends the pending edits to the page. Runs on a pooled thread. Returns the generation the page
+     * was asked to render, or 0 when it renders nothing. After a render the client keeps its slot
+     * until it reports the result of that generation or a newer one to [MermaidRenderScheduler.finished];
+     * updates requested in the meantime run under the same slot, so the page sees the newer generation
+     * and can drop the render it supersedes.
+     */
+    fun runScheduledUpdate(): Long
+}
+
+/**
+ * Runs the updates of all previews, so that many previews changed at once by a refactoring or a
+ * VCS update do not all render at the same time.
+ *
+ * Requests are debounced and coalesced per client: a client has at most one request waiting and
+ * never runs twice at once. Ready requests wait for one of the render slots, the focused preview
+ * first, then visible ones, then the rest; among equals the oldest request goes first. A slot is
+ * held from the update until the page reports the result of the newest render sent under it.
+ */
+class MermaidRenderScheduler : Disposable {
+    private val LOG = Logger.getInstance(MermaidRenderScheduler::class.java)
+
+    private class Entry(val client: MermaidRenderClient) {
+        var timer: ScheduledFuture<*>? = null
+        var readySince = 0L
+        var isReady = false
+        var isRunning = false
+        var holdsSlot = false
+
+        // Counts the slot timeouts armed for this entry, so an earlier one cannot end a later render.
+        var slotId = 0
+
+        // Newest generation rendered under the slot, 0 before the first; older results do not end it.
+        var slotGeneration = 0L
+
+        // The result can arrive before the update that caused it has returned.
+        var finishedGeneration = -1L
+        var slotTimeout: ScheduledFuture<*>? = null
+
+        // Requested again while running; queued as soon as the run ends.
+        var rerunDelayMs = -1
+    }
+
+    private val lock = Any()
+    private val entries = HashMap<MermaidRenderClient, Entry>()
+    private val ready = PriorityQueue<Entry>(
+        compareBy<Entry>({ it.client.renderPriority }, { it.readySince })
+    )
+    private var busySlots = 0
+    private var isDisposed = false
+
+    private val maxSlots: Int
+        get() = MermaidSettingsState.instance.maxConcurrentRenders.coerceAtLeast(1)
+
+    /** Runs an update of [client] after [delayMs], replacing any request still waiting. */
+    fun schedule(client: MermaidRenderClient, delayMs: Int) {
+        synchronized(lock) {
+            if (isDisposed) return
+            val entry = entries.getOrPut(client) { Entry(client) }
+            if (entry.isRunning) {
+                entry.rerunDelayMs = delayMs
+                return
+            }
+            // A client waiting for its render sends the update under the same slot, so a newer text
+            // is not held back until the render it supersedes is done.
+            cancelWaiting(entry)
+            startTimer(entry, delayMs)
+        }
+    }
+
+    /** Drops the waiting request of [client]; returns `true` when there was one. */
+    fun cancel(client: MermaidRenderClient): Boolean {
+        synchronized(lock) {
+            val entry = entries[client] ?: return false
+            val hadRequest = entry.timer != null || entry.isReady || entry.rerunDelayMs >= 0
+            cancelWaiting(entry)
+            entry.rerunDelayMs = -1
+            if (!entry.isRunning && !entry.holdsSlot) entries.remove(client)
+            return hadRequest
+        }
+    }
+
+    /** The page of [client] will not report its render, e.g. because it was reloaded. */
+    fun finished(client: MermaidRenderClient) = finished(client, Long.MAX_VALUE)
+
+    /** The page of [client] reported the result of [generation]. */
+    fun finished(client: MermaidRenderClient, generation: Long) {
+        synchronized(lock) {
+            val entry = entries[client] ?: return
+            if (entry.isRunning) {
+                entry.finishedGeneration = maxOf(entry.finishedGeneration, generation)
+                return
+            }
+            // A late result of an earlier render, or of a render nobody scheduled, keeps the slot.
+            if (!entry.holdsSlot || entry.slotGeneration == 0L || generation < entry.slotGeneration) return
+            releaseSlot(entry)
+        }
+        pump()
+    }
+
+    private fun slotTimedOut(entry: Entry, slotId: Int) {
+        synchronized(lock) {
+            if (entries[entry.client] !== entry || !entry.holdsSlot || entry.slotId != slotId) return
+            if (entry.isRunning) {
+                // Ends the slot once the update returns, unless it sent a newer render.
+                entry.finishedGeneration = maxOf(entry.finishedGeneration, entry.slotGeneration)
+                return
+            }
+            releaseSlot(entry)
+        }
+        pump()
+    }
+
+    /** Forgets [client] completely, e.g. when its editor is closed. */
+    fun remove(client: MermaidRenderClient) {
+        synchronized(lock) {
+            val entry = entries.remove(client) ?: return
+            cancelWaiting(entry)
+            entry.rerunDelayMs = -1
+            // A running update gives the slot back when it returns.
+            if (entry.holdsSlot && !entry.isRunning) releaseSlot(entry)
+        }
+        pump()
+    }
+
+    private fun startTimer(entry: Entry, delayMs: Int) {
+        if (delayMs <= 0) {
+            if (entry.holdsSlot) {
+                startRun(entry)
+            } else {
+                markReady(entry)
+                ApplicationManager.getApplication().executeOnPooledThread { pump() }
+            }
+            return
+        }
+        entry.timer = AppExecutorUtil.getAppScheduledExecutorService().schedule({
+            synchronized(lock) {
+                if (entries[entry.client] !== entry || entry.timer == null) return@schedule
+                entry.timer = null
+                // The slot may have been released while the timer ran.
+                if (entry.holdsSlot) startRun(entry) else markReady(entry)
+            }
+            pump()
+        }, delayMs.toLong(), TimeUnit.MILLISECONDS)
+    }
+
+    /** Runs the update of [entry] under the slot it holds or was just given. Called under [lock]. */
+    private fun startRun(entry: Entry) {
+        entry.isRunning = true
+        entry.finishedGeneration = -1
+        ApplicationManager.getApplication().executeOnPooledThread { run(entry) }
+    }
+
+    private fun markReady(entry: Entry) {
+        entry.isReady = true
+        entry.readySince = System.nanoTime()
+        ready.add(entry)
+    }
+
+    private fun cancelWaiting(entry: Entry) {
+        entry.timer?.cancel(false)
+        entry.timer = null
+        if (entry.isReady) {
+            entry.isReady = false
+            ready.remove(entry)
+        }
+    }
+
+    private fun releaseSlot(entry: Entry) {
+        entry.holdsSlot = false
+        entry.slotGeneration = 0
+        entry.slotTimeout?.cancel(false)
+        entry.slotTimeout = null
+        busySlots--
+        requeueIfRequested(entry)
+    }
+
+    private fun requeueIfRequested(entry: Entry) {
+        if (entry.rerunDelayMs >= 0 && entries[entry.client] === entry) {
+            val delayMs = entry.rerunDelayMs
+            entry.rerunDelayMs = -1
+            startTimer(entry, delayMs)
+        }
+    }
+
+    /** Starts ready requests while slots are free. */
+    private fun pump() {
+        synchronized(lock) {
+            if (isDisposed) return
+            // Priorities may have changed while waiting; rebuild the order before picking.
+            val waiting = ArrayList(ready)
+            ready.clear()
+            ready.addAll(waiting)
+            while (busySlots < maxSlots) {
+                val next = ready.poll() ?: return
+                next.isReady = false
+                next.holdsSlot = true
+                busySlots++
+                startRun(next)
+            }
+        }
+    }
+
+    private fun run(entry: Entry) {
+        val generation = try {
+            entry.client.runScheduledUpdate()
+        } catch (e: Exception) {
+            LOG.warn("Mermaid preview update failed", e)
+            0L
+        }
+        synchronized(lock) {
+            entry.isRunning = false
+            if (!entry.holdsSlot) return@synchronized
+            val isCurrent = entries[entry.client] === entry && !isDisposed
+            if (generation > 0 && entry.finishedGeneration < generation && isCurrent) {
+                entry.slotGeneration = generation
+                armSlotTimeout(entry)
+                requeueIfRequested(entry)
+            } else if (isCurrent && entry.slotGeneration != 0L && entry.finishedGeneration < entry.slotGeneration) {
+                // Nothing new was rendered; the slot still waits for the render sent before.
+                requeueIfRequested(entry)
+            } else {
+                releaseSlot(entry)
+            }
+        }
+        pump()
+    }
+
+    /** Restarts the slot timeout for the render last sent under the slot. Called under [lock]. */
+    private fun armSlotTimeout(entry: Entry) {
+        entry.slotTimeout?.cancel(false)
+        // A result that never comes, e.g. because the page was reloaded, must not keep the slot.
+        val timeoutMs = MermaidSettingsState.instance.renderTimeoutSeconds.coerceAtLeast(1) * 1000L + SLOT_GRACE_MS
+        val slotId = ++entry.slotId
+        entry.slotTimeout = AppExecutorUtil.getAppScheduledExecutorService().schedule(
+            { slotTimedOut(entry, slotId) }, timeoutMs, TimeUnit.MILLISECONDS
+        )
+    }
+
+    override fun dispose() {
+        synchronized(lock) {
+            isDisposed = true
+            for (entry in entries.values) {
+                cancelWaiting(entry)
+                entry.slotTimeout?.cancel(false)
+            }
+            entries.clear()
+        }
+    }
+
+    companion object {
+        private const val SLOT_GRACE_MS = 2_000L
+
+        val instance: MermaidRenderScheduler
+            get() = ApplicationManager.getApplication().getService(MermaidRenderScheduler::class.java)
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.github.emotionbug.mermaidliveeditor.MermaidSettingsState
+import com.intellij.openapi.Disposable
+import com.intellij.util.Alarm
+
+/**
+ * Detects renders that never finish. The page reports when a render starts and every result ends
+ * it; a render still running after the configured timeout is reported through [onTimeout], which
+ * receives the timeout and the delay before the same text may be rendered again.
+ *
+ * A text that timed out is held back with an exponential backoff, so a pathological diagram does
+ * not hang every fresh renderer it is sent to.
+ */
+class MermaidRenderWatchdog(
+    parentDisposable: Disposable,
+    private val onTimeout: (timeoutMs: Long, retryDelayMs: Long) -> Unit
+) {
+    private val alarm = Alarm(Alarm.ThreadToUse.POOLED_THREAD, parentDisposable)
+    private val lock = Any()
+
+    // Fingerprints of recent render requests by generation, to know which text a hung render had.
+    private val requested = object : LinkedHashMap<Long, Long?>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Long, Long?>) = size > MAX_TRACKED_REQUESTS
+    }
+    private var running = 0L
+    private var timedOutFingerprint: Long? = null
+    private var retryAt = 0L
+    private var backoffMs = INITIAL_BACKOFF_MS
+
+    fun requested(generation: Long, fingerprint: Long?) {
+        synchronized(lock) {
+            requested[generation] = fingerprint
+        }
+    }
+
+    fun started(generation: Long) {
+        val timeoutMs = MermaidSettingsState.instance.renderTimeoutSeconds.coerceAtLeast(1) * 1000L
+        synchronized(lock) {
+            running = generation
+        }
+        alarm.cancelAllRequests()
+        alarm.addRequest({ checkTimeout(generation, timeoutMs) }, timeoutMs)
+    }
+
+    /** A result for [generation] arrived; the page renders one diagram at a time. */
+    fun finished(generation: Long) {
+        synchronized(lock) {
+            if (generation < running) return
+            running = 0
+        }
+        alarm.cancelAllRequests()
+    }
+
+    /** The page went away, together with anything it was rendering. */
+    fun reset() {
+        synchronized(lock) {
+            running = 0
+        }
+        alarm.cancelAllRequests()
+    }
+
+    /** Milliseconds before the text with [fingerprint] may be rendered again, or 0. */
+    fun backoffRemainingMs(fingerprint: Long?): Long {
+        synchronized(lock) {
+            if (fingerprint == null || fingerprint != timedOutFingerprint) return 0
+            return (retryAt - System.currentTimeMillis()).coerceAtLeast(0)
+        }
+    }
+
+    private fun checkTimeout(generation: Long, timeoutMs: Long) {
+        val retryDelayMs = synchronized(lock) {
+            if (running != generation) return
+            running = 0
+            val fingerprint = requested[generation]
+            // Only a text that keeps timing out backs off further.
+            backoffMs = if (fingerprint != null && fingerprint == timedOutFingerprint) {
+                (backoffMs * 2).coerceAtMost(MAX_BACKOFF_MS)
+            } else {
+                INITIAL_BACKOFF_MS
+            }
+            timedOutFingerprint = fingerprint
+            retryAt = System.currentTimeMillis() + backoffMs
+            backoffMs
+        }
+        onTimeout(timeoutMs, retryDelayMs)
+    }
+
+    companion object {
+        private const val MAX_TRACKED_REQUESTS = 16
+        private const val INITIAL_BACKOFF_MS = 5_000L
+        private const val MAX_BACKOFF_MS = 5 * 60_000L
+    }
+}
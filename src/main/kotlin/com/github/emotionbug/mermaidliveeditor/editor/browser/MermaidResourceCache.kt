@@ -0,0 +1,82 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.github.emotionbug.mermaidliveeditor.MermaidSettingsState
+import com.intellij.openapi.diagnostic.Logger
+import java.io.File
+import java.net.URLConnection
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Application-wide cache of the files served to the preview pages.
+ *
+ * The bundled page and Mermaid.js never change during a session and are read from the classloader
+ * once; any other bundled path the page asks for is read on each request and not kept. The
+ * configured local Mermaid.js file is re-read only when its modification time or size changes,
+ * which is checked on every lookup. Each resource carries an ETag derived from its content, which
+ * also versions the URLs handed to the page.
+ */
+object MermaidResourceCache {
+    private val LOG = Logger.getInstance(MermaidResourceCache::class.java)
+
+    class Resource(val data: ByteArray, val mimeType: String, val etag: String)
+
+    private class LocalFileEntry(val path: String, val modified: Long, val length: Long, val resource: Resource)
+
+    private val bundled = ConcurrentHashMap<String, Resource>()
+    private val cachedBundledNames = setOf(MermaidSettingsState.MERMAID_JS_DEFAULT_NAME, MermaidResourceHandler.SKELETON_HTML)
+
+    @Volatile
+    private var localFile: LocalFileEntry? = null
+
+    /** Resolves a path below [MermaidResourceHandler.RESOURCE_HANDLER_URL] to its content. */
+    fun get(path: String): Resource? {
+        return when (path) {
+            MermaidResourceHandler.DEFAULT_MERMAID_JS -> bundled(MermaidSettingsState.MERMAID_JS_DEFAULT_NAME)
+            MermaidResourceHandler.LOCAL_FILE_MERMAID_JS -> localMermaidJs()
+            else -> null
+        } ?: bundled(path)
+    }
+
+    private fun bundled(name: String): Resource? {
+        bundled[name]?.let { return it }
+        val stream = javaClass.classLoader.getResourceAsStream(name)
+            ?: javaClass.getResourceAsStream("/$name")
+            ?: return null
+        val resource = createResource(stream.use { it.readBytes() }, name)
+        // Paths come from the page, so only the known assets may occupy the cache for good.
+        if (name !in cachedBundledNames) return resource
+        return bundled.putIfAbsent(name, resource) ?: resource
+    }
+
+    /** The Mermaid.js file configured in the settings, or `null` when it does not exist. */
+    fun localMermaidJs(): Resource? {
+        val settingsPath = MermaidSettingsState.instance.mermaidJsUrl
+        val file = File(settingsPath.removePrefix("file://").removePrefix("file:/"))
+        if (!file.isFile) return null
+
+        val path = file.absolutePath
+        val modified = file.lastModified()
+        val length = file.length()
+        localFile?.let {
+            if (it.path == path && it.modified == modified && it.length == length) return it.resource
+        }
+
+        LOG.info("Loading local Mermaid.js from $path")
+        val resource = createResource(file.readBytes(), MermaidResourceHandler.LOCAL_FILE_MERMAID_JS)
+        localFile = LocalFileEntry(path, modified, length, resource)
+        return resource
+    }
+
+    private fun createResource(data: ByteArray, name: String): Resource {
+        val mimeType = if (name.endsWith(".js")) {
+            "application/javascript"
+        } else {
+            URLConnection.guessContentTypeFromName(name) ?: "text/html"
+        }
+        val digest = MessageDigest.getInstance("SHA-256").digest(data)
+        val etag = HexFormat.of().formatHex(digest, 0, 12)
+        return Resource(data, mimeType, etag)
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.google.gson.Gson
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.ui.jcef.JBCefBrowser
+import com.intellij.ui.jcef.JBCefJSQuery
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.util.Base64
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import javax.imageio.ImageIO
+
+/** Supplies the SVG currently shown in the preview to the export actions. */
+interface MermaidSvgSource {
+    fun hasSvg(): Boolean
+
+    /** Completes with the SVG, or with `null` when nothing has been rendered yet. */
+    fun fetchSvg(): CompletableFuture<String?>
+}
+
+/**
+ * Pulls the rendered SVG out of the preview page on demand.
+ *
+ * The page only reports the size of each render; the SVG itself stays in the page until an export
+ * asks for it. Large SVGs are sent back in chunks through [query], so no single IPC message has to
+ * carry megabytes of markup.
+ */
+class MermaidSvgTransfer(
+    private val browser: JBCefBrowser,
+    private val query: JBCefJSQuery,
+    private val svgAvailable: () -> Boolean
+) : MermaidSvgSource {
+    private val LOG = Logger.getInstance(MermaidSvgTransfer::class.java)
+
+    private class Chunk(val requestId: Int, val index: Int, val count: Int, val data: String?)
+
+    private class PendingTransfer(val future: CompletableFuture<String?>) {
+        var chunks: Array<String?>? = null
+        var received = 0
+    }
+
+    private val gson = Gson()
+    private val nextRequestId = AtomicInteger()
+    private val pending = ConcurrentHashMap<Int, PendingTransfer>()
+
+    init {
+        query.addHandler { chunkJson ->
+            onChunk(gson.fromJson(chunkJson, Chunk::class.java))
+            null
+        }
+    }
+
+    /** Script expression the page calls with each chunk object. */
+    fun injectHandler(): String = query.inject("JSON.stringify(chunk)")
+
+    override fun hasSvg(): Boolean = svgAvailable()
+
+    override fun fetchSvg(): CompletableFuture<String?> =
+        fetch { requestId -> "if (window.sendSvg) window.sendSvg($requestId, $CHUNK_SIZE);" }
+
+    /**
+     * Completes with a bitmap of the rendered diagram of at most [maxPixels] pixels, or with `null`
+     * when nothing has been rendered or the page could not draw it.
+     */
+    fun fetchImage(maxPixels: Int): CompletableFuture<BufferedImage?> =
+        fetch { requestId ->
+            "if (window.sendSnapshotImage) window.sendSnapshotImage($requestId, $CHUNK_SIZE, $maxPixels);"
+        }.thenApply { base64 ->
+            base64?.let { ImageIO.read(ByteArrayInputStream(Base64.getDecoder().decode(it))) }
+        }
+
+    private fun fetch(script: (requestId: Int) -> String): CompletableFuture<String?> {
+        val requestId = nextRequestId.incrementAndGet()
+        val future = CompletableFuture<String?>()
+        pending[requestId] = PendingTransfer(future)
+        future.orTimeout(TRANSFER_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .whenComplete { _, _ -> pending.remove(requestId) }
+
+        browser.cefBrowser.executeJavaScript(script(requestId), browser.cefBrowser.url, 0)
+        return future
+    }
+
+    private fun onChunk(chunk: Chunk) {
+        val transfer = pending[chunk.requestId] ?: return
+        synchronized(transfer) {
+            if (chunk.count == 0) {
+                transfer.future.complete(null)
+                return
+            }
+            val chunks = transfer.chunks ?: arrayOfNulls<String>(chunk.count).also { transfer.chunks = it }
+            if (chunk.index !in chunks.indices || chunks[chunk.index] != null) {
+                LOG.warn("Unexpected chunk ${chunk.index}/${chunk.count} for request ${chunk.requestId}")
+                return
+            }
+            chunks[chunk.index] = chunk.data ?: ""
+            transfer.received++
+            if (transfer.received == chunks.size) {
+                transfer.future.complete(chunks.joinToString(""))
+            }
+        }
+    }
+
+    companion object {
+        // In UTF-16 code units; keeps each query message well below the IPC size where copies hurt.
+        private const val CHUNK_SIZE = 256 * 1024
+        private const val TRANSFER_TIMEOUT_SECONDS = 30L
+    }
+}
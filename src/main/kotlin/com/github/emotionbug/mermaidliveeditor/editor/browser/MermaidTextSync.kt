@@ -0,0 +1,130 @@
+package com.github.emotionbug.mermaidliveeditor.editor.browser
+
+import com.google.gson.Gson
+import com.intellij.openapi.editor.event.DocumentEvent
+
+/**
+ * Mirrors document edits into the preview page, which keeps its own copy of the diagram text.
+ *
+ * Edits are queued as deltas on the EDT and turned into a script off the EDT. Every batch carries
+ * the length and checksum of the expected text; the page asks for a full resync when its copy
+ * disagrees, and a full resync is also forced periodically.
+ */
+class MermaidTextSync {
+    internal class Delta(val offset: Int, val removed: Int, val inserted: String)
+
+    class Batch internal constructor(
+        val text: CharSequence,
+        internal val deltas: List<Delta>?,
+        /** Wall-clock time of the oldest edit in the batch, or 0 when it carries none. */
+        val editedAt: Long
+    ) {
+        val isFullText: Boolean get() = deltas == null
+    }
+
+    private val lock = Any()
+    private val gson = Gson()
+    private val pending = ArrayList<Delta>()
+    private var pendingChars = 0
+    private var snapshot: CharSequence = ""
+    private var fullSyncRequested = true
+    private var batchesSinceFullSync = 0
+    private var firstEditAt = 0L
+
+    fun documentChanged(event: DocumentEvent) {
+        synchronized(lock) {
+            val inserted = event.newFragment.toString()
+            pending += Delta(event.offset, event.oldLength, inserted)
+            pendingChars += inserted.length
+            snapshot = event.document.immutableCharSequence
+            if (firstEditAt == 0L) firstEditAt = System.currentTimeMillis()
+        }
+    }
+
+    /**
+     * Notes a change without keeping the edit, for previews that are not showing. The next batch
+     * is the full text, so nothing piles up during large batch edits.
+     */
+    fun skip(event: DocumentEvent) {
+        synchronized(lock) {
+            pending.clear()
+            pendingChars = 0
+            snapshot = event.document.immutableCharSequence
+            fullSyncRequested = true
+        }
+    }
+
+    /** The page has just been initialized with [text]; earlier edits are already part of it. */
+    fun reset(text: CharSequence) {
+        synchronized(lock) {
+            pending.clear()
+            pendingChars = 0
+            snapshot = text
+            fullSyncRequested = false
+            batchesSinceFullSync = 0
+            firstEditAt = 0
+        }
+    }
+
+    /** Whether the next [drain] has something to send. */
+    fun hasPendingChanges(): Boolean {
+        synchronized(lock) {
+            return fullSyncRequested || pending.isNotEmpty()
+        }
+    }
+
+    fun requestFullSync() {
+        synchronized(lock) {
+            fullSyncRequested = true
+        }
+    }
+
+    /** Takes the queued edits, or the whole text when a full resync is due. */
+    fun drain(): Batch? {
+        synchronized(lock) {
+            val fullSync = fullSyncRequested ||
+                    batchesSinceFullSync >= FULL_SYNC_INTERVAL ||
+                    pendingChars > snapshot.length / 2
+            if (!fullSync && pending.isEmpty()) return null
+
+            val batch = if (fullSync) {
+                Batch(snapshot, null, firstEditAt)
+            } else {
+                Batch(snapshot, ArrayList(pending), firstEditAt)
+            }
+            firstEditAt = 0
+            pending.clear()
+            pendingChars = 0
+            fullSyncRequested = false
+            batchesSinceFullSync = if (fullSync) 0 else batchesSinceFullSync + 1
+            return batch
+        }
+    }
+
+    /** Builds the page call for [batch]. Meant to run off the EDT. */
+    fun toScript(batch: Batch, generation: Long, render: Boolean): String {
+        val meta = "{length: ${batch.text.length}, checksum: ${checksum(batch.text)}, " +
+                "generation: $generation, render: $render}"
+        val deltas = batch.deltas
+        return if (deltas == null) {
+            val jsonText = gson.toJson(batch.text.toString())
+            "if (window.replaceText) window.replaceText($jsonText, $meta);"
+        } else {
+            val jsonDeltas = gson.toJson(deltas.map { listOf(it.offset, it.removed, it.inserted) })
+            "if (window.applyDeltas) window.applyDeltas($jsonDeltas, $meta);"
+        }
+    }
+
+    companion object {
+        private const val FULL_SYNC_INTERVAL = 50
+
+        /** 32-bit FNV-1a over UTF-16 code units, matching `textChecksum` in the preview page. */
+        fun checksum(text: CharSequence): Long {
+            var hash = 0x811c9dc5.toInt()
+            for (i in 0 until text.length) {
+                hash = (hash xor text[i].code) * 16777619
+            }
+            return hash.toLong() and 0xffffffffL
+        }
+    }
+}
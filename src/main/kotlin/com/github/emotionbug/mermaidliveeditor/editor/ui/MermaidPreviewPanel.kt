@@ -2,25 +2,129 @@ package com.github.emotionbug.mermaidliveeditor.editor.ui
 
 import com.intellij.ui.JBColor
 import com.intellij.ui.jcef.JBCefBrowser
+import com.intellij.ui.scale.JBUIScale
+import com.intellij.util.ui.JBUI
+import com.intellij.util.ui.UIUtil
 import java.awt.BorderLayout
+import java.awt.Cursor
+import java.awt.Graphics
+import java.awt.Graphics2D
+import java.awt.RenderingHints
+import java.awt.event.MouseAdapter
+import java.awt.event.MouseEvent
+import java.awt.image.BufferedImage
+import javax.swing.JComponent
 import javax.swing.JLabel
 import javax.swing.JPanel
 
 class MermaidPreviewPanel(
-    browser: JBCefBrowser
+    onPlaceholderClicked: () -> Unit
 ) : JPanel(BorderLayout()) {
     val errorLabel = JLabel().apply {
         foreground = JBColor.RED
         isVisible = false
     }
 
+    val statusLabel = JLabel().apply {
+        foreground = JBColor.GRAY
+        font = JBUI.Fonts.smallFont()
+        border = JBUI.Borders.empty(2, 6)
+    }
+
+    // Render mode of the preview, highlighted while edits wait for a save or a manual refresh.
+    val renderModeLabel = JLabel().apply {
+        font = JBUI.Fonts.smallFont()
+        border = JBUI.Borders.empty(2, 6)
+    }
+
+    // Shown while the preview holds no browser, e.g. when the shared pool gave it to another tab.
+    private val placeholder = SnapshotView().apply {
+        cursor = Cursor.getPredefinedCursor(Cursor.HAND_CURSOR)
+        addMouseListener(object : MouseAdapter() {
+            override fun mouseClicked(e: MouseEvent) {
+                onPlaceholderClicked()
+            }
+        })
+    }
+
+    private var content: JComponent = placeholder
+
     init {
         background = JBColor.WHITE
         add(errorLabel, BorderLayout.NORTH)
-        add(browser.component, BorderLayout.CENTER)
+        add(placeholder, BorderLayout.CENTER)
+        add(JPanel(BorderLayout()).apply {
+            isOpaque = false
+            add(statusLabel, BorderLayout.CENTER)
+            add(renderModeLabel, BorderLayout.EAST)
+        }, BorderLayout.SOUTH)
+    }
+
+    fun showBrowser(browser: JBCefBrowser) = setContent(browser.component)
+
+    /** Shows [snapshot], the last rendered diagram, in place of the browser, or a hint without one. */
+    fun showPlaceholder(snapshot: BufferedImage?) {
+        placeholder.image = snapshot
+        placeholder.toolTipText = if (snapshot != null) "Last rendered diagram. Click to resume the live preview." else null
+        setContent(placeholder)
+        placeholder.repaint()
+    }
+
+    private fun setContent(component: JComponent) {
+        if (content === component) return
+        remove(content)
+        content = component
+        add(component, BorderLayout.CENTER)
+        revalidate()
+        repaint()
+    }
+
+    fun showRenderMode(text: String, isStale: Boolean) {
+        renderModeLabel.text = text
+        renderModeLabel.foreground = if (isStale) JBColor.ORANGE else JBColor.GRAY
     }
 
     fun dispose() {
         // do nothing.
     }
 }
+
+/** Paints a snapshot bitmap scaled down to fit, with a hint below it. */
+private class SnapshotView : JComponent() {
+    var image: BufferedImage? = null
+
+    override fun paintComponent(g: Graphics) {
+        val g2 = g.create() as Graphics2D
+        try {
+            g2.color = JBColor.WHITE
+            g2.fillRect(0, 0, width, height)
+            UIUtil.applyRenderingHints(g2)
+            g2.font = JBUI.Fonts.smallFont()
+            val metrics = g2.fontMetrics
+            val hint = "Preview paused. Click to resume."
+            val image = image
+            if (image == null) {
+                g2.color = JBColor.GRAY
+                g2.drawString(hint, (width - metrics.stringWidth(hint)) / 2, (height + metrics.ascent) / 2)
+                return
+            }
+
+            val hintHeight = metrics.height + JBUI.scale(8)
+            val available = (height - hintHeight).coerceAtLeast(1)
+            // The page draws at the device pixel ratio; never blow the bitmap up beyond that.
+            val scale = minOf(
+                width.toDouble() / image.width,
+                available.toDouble() / image.height,
+                1.0 / JBUIScale.sysScale(this)
+            )
+            val drawWidth = (image.width * scale).toInt()
+            val drawHeight = (image.height * scale).toInt()
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+            g2.drawImage(image, (width - drawWidth) / 2, (available - drawHeight) / 2, drawWidth, drawHeight, null)
+            g2.color = JBColor.GRAY
+            g2.drawString(hint, (width - metrics.stringWidth(hint)) / 2, height - JBUI.scale(4) - metrics.descent)
+        } finally {
+            g2.dispose()
+        }
+    }
+}
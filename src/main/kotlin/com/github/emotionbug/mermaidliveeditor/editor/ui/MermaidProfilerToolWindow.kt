@@ -0,0 +1,112 @@
+package com.github.emotionbug.mermaidliveeditor.editor.ui
+
+import com.github.emotionbug.mermaidliveeditor.MermaidDiagramProfile
+import com.intellij.openapi.project.DumbAware
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.openapi.wm.ToolWindow
+import com.intellij.openapi.wm.ToolWindowFactory
+import com.intellij.openapi.wm.ToolWindowManager
+import com.intellij.ui.JBColor
+import com.intellij.ui.components.JBLabel
+import com.intellij.ui.components.JBScrollPane
+import com.intellij.ui.content.ContentFactory
+import com.intellij.util.ui.JBUI
+import com.intellij.util.ui.UIUtil
+import java.awt.BorderLayout
+import javax.swing.JPanel
+import javax.swing.SwingConstants
+
+/** Shows the result of the last "Profile Diagram" run. */
+class MermaidProfilerPanel : JPanel(BorderLayout()) {
+    private val label = JBLabel("Run Profile Diagram from a Mermaid preview toolbar.", SwingConstants.LEFT).apply {
+        verticalAlignment = SwingConstants.TOP
+        border = JBUI.Borders.empty(8)
+        foreground = UIUtil.getContextHelpForeground()
+    }
+
+    init {
+        add(JBScrollPane(label), BorderLayout.CENTER)
+    }
+
+    fun showProfile(fileName: String, profile: MermaidDiagramProfile) {
+        label.foreground = UIUtil.getLabelForeground()
+        label.text = toHtml(fileName, profile)
+    }
+
+    private fun toHtml(fileName: String, profile: MermaidDiagramProfile): String {
+        val title = "<b>${StringUtil.escapeXmlEntities(fileName)}</b>"
+        if (profile.error != null) {
+            return "<html>$title<br/>Profiling failed: ${StringUtil.escapeXmlEntities(profile.error)}</html>"
+        }
+        val total = profile.parseMs + profile.renderMs + profile.domMs
+        val html = StringBuilder("<html>$title<br/><br/>")
+        html.append("<table>")
+        row(html, "Parse", ms(profile.parseMs))
+        row(html, "Layout and SVG (mermaid.render)", ms(profile.renderMs))
+        row(html, "DOM insertion", ms(profile.domMs))
+        row(html, "<b>Total</b>", "<b>${ms(total)}</b>")
+        html.append("</table><br/><table>")
+        row(html, "Nodes", profile.nodes.toString())
+        row(html, "Edges", profile.edges.toString())
+        row(html, "Subgraphs", profile.subgraphs.toString())
+        row(html, "Text elements", profile.textElements.toString())
+        row(html, "Path points", profile.pathPoints.toString())
+        row(html, "DOM elements", profile.domElements.toString())
+        row(html, "SVG size", StringUtil.formatFileSize(profile.svgChars.toLong()))
+        html.append("</table>")
+
+        if (profile.largestSubgraphs.isNotEmpty()) {
+            html.append("<br/>Largest subgraphs:<table>")
+            html.append("<tr><th align='left'>Subgraph</th><th>Nodes</th><th>Share</th><th>Size (px)</th></tr>")
+            for (subgraph in profile.largestSubgraphs) {
+                val share = if (profile.nodes > 0) subgraph.nodes * 100 / profile.nodes else 0
+                val name = subgraph.label.ifBlank { subgraph.id }.ifBlank { "(unnamed)" }
+                // Subgraphs holding a large part of the diagram are the first candidates to split.
+                val color = if (share >= LARGE_SUBGRAPH_SHARE) " color='${colorOf(JBColor.RED)}'" else ""
+                html.append("<tr><td><font$color>${StringUtil.escapeXmlEntities(name)}</font></td>")
+                    .append("<td align='right'><font$color>${subgraph.nodes}</font></td>")
+                    .append("<td align='right'><font$color>$share%</font></td>")
+                    .append("<td align='right'>${subgraph.width} × ${subgraph.height}</td></tr>")
+            }
+            html.append("</table>")
+        }
+        return html.append("</html>").toString()
+    }
+
+    private fun row(html: StringBuilder, name: String, value: String) {
+        html.append("<tr><td>$name</td><td align='right'>$value</td></tr>")
+    }
+
+    private fun ms(value: Double) = "${value.toInt()} ms"
+
+    private fun colorOf(color: JBColor) = "#%06x".format(color.rgb and 0xffffff)
+
+    companion object {
+        private const val LARGE_SUBGRAPH_SHARE = 25
+    }
+}
+
+class MermaidProfilerToolWindowFactory : ToolWindowFactory, DumbAware {
+    // Hidden until the first profile, so projects without Mermaid files do not get a stripe button.
+    override fun shouldBeAvailable(project: Project): Boolean = false
+
+    override fun createToolWindowContent(project: Project, toolWindow: ToolWindow) {
+        val content = ContentFactory.getInstance().createContent(MermaidProfilerPanel(), null, false)
+        toolWindow.contentManager.addContent(content)
+    }
+
+    companion object {
+        const val ID = "Mermaid Profiler"
+
+        /** Opens the tool window and shows [profile] in it. */
+        fun show(project: Project, fileName: String, profile: MermaidDiagramProfile) {
+            val toolWindow = ToolWindowManager.getInstance(project).getToolWindow(ID) ?: return
+            toolWindow.isAvailable = true
+            toolWindow.show {
+                val panel = toolWindow.contentManager.getContent(0)?.component as? MermaidProfilerPanel
+                panel?.showProfile(fileName, profile)
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.emotionbug.mermaidliveeditor.editor.ui
+
+import com.github.emotionbug.mermaidliveeditor.MermaidPreviewEditor
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderMetrics
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderMetricsListener
+import com.github.emotionbug.mermaidliveeditor.editor.browser.MermaidRenderSample
+import com.intellij.openapi.fileEditor.FileEditorManager
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent
+import com.intellij.openapi.fileEditor.FileEditorManagerListener
+import com.intellij.openapi.fileEditor.TextEditorWithPreview
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.Disposer
+import com.intellij.openapi.wm.StatusBar
+import com.intellij.openapi.wm.StatusBarWidget
+import com.intellij.openapi.wm.StatusBarWidgetFactory
+import com.intellij.testFramework.LightVirtualFile
+import com.intellij.util.Consumer
+import java.awt.Component
+import java.awt.event.MouseEvent
+
+/**
+ * Shows the last, median and 95th percentile update latency of the preview in the selected
+ * Mermaid editor. The tooltip breaks the latest round trip down by stage; a click opens all
+ * recorded samples as a tab-separated table.
+ */
+class MermaidRenderLatencyWidget(private val project: Project) : StatusBarWidget,
+    StatusBarWidget.TextPresentation {
+    private var statusBar: StatusBar? = null
+
+    override fun ID(): String = ID
+
+    override fun getPresentation(): StatusBarWidget.WidgetPresentation = this
+
+    override fun install(statusBar: StatusBar) {
+        this.statusBar = statusBar
+        val connection = project.messageBus.connect(this)
+        connection.subscribe(MermaidRenderMetrics.TOPIC, MermaidRenderMetricsListener { update() })
+        connection.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, object : FileEditorManagerListener {
+            override fun selectionChanged(event: FileEditorManagerEvent) {
+                update()
+            }
+        })
+        update()
+    }
+
+    private fun update() {
+        statusBar?.updateWidget(ID)
+    }
+
+    private fun selectedPreview(): MermaidPreviewEditor? {
+        val editor = FileEditorManager.getInstance(project).selectedEditor as? TextEditorWithPreview ?: return null
+        return editor.previewEditor as? MermaidPreviewEditor
+    }
+
+    override fun getText(): String {
+        val samples = selectedPreview()?.metrics?.snapshot() ?: return ""
+        if (samples.isEmpty()) return ""
+        val totals = samples.map { it.totalMs }
+        return "Mermaid ${ms(totals.last())} · p50 ${ms(MermaidRenderMetrics.percentile(totals, 50))}" +
+                " · p95 ${ms(MermaidRenderMetrics.percentile(totals, 95))}"
+    }
+
+    override fun getAlignment(): Float = Component.CENTER_ALIGNMENT
+
+    override fun getTooltipText(): String? {
+        val samples = selectedPreview()?.metrics?.snapshot() ?: return null
+        val last = samples.lastOrNull() ?: return null
+        val rows = MermaidRenderSample.STAGE_NAMES.mapIndexed { index, name ->
+            val values = samples.map { it.stages[index] }
+            "<tr><td>$name</td><td align='right'>${ms(last.stages[index])}</td>" +
+                    "<td align='right'>${ms(MermaidRenderMetrics.percentile(values, 50))}</td>" +
+                    "<td align='right'>${ms(MermaidRenderMetrics.percentile(values, 95))}</td></tr>"
+        }
+        return "<html>Mermaid preview update latency (${samples.size} samples${if (last.fromCache) ", last from cache" else ""})" +
+                "<table><tr><th></th><th>last</th><th>p50</th><th>p95</th></tr>${rows.joinToString("")}</table>" +
+                "Click to open the raw samples</html>"
+    }
+
+    override fun getClickConsumer(): Consumer<MouseEvent> = Consumer {
+        val preview = selectedPreview() ?: return@Consumer
+        val file = LightVirtualFile("${preview.file.nameWithoutExtension}-render-samples.tsv", preview.metrics.dump())
+        FileEditorManager.getInstance(project).openFile(file, true)
+    }
+
+    override fun dispose() {
+        statusBar = null
+    }
+
+    companion object {
+        const val ID = "MermaidRenderLatency"
+    }
+}
+
+class MermaidRenderLatencyWidgetFactory : StatusBarWidgetFactory {
+    override fun getId(): String = MermaidRenderLatencyWidget.ID
+
+    override fun getDisplayName(): String = "Mermaid Preview Latency"
+
+    override fun createWidget(project: Project): StatusBarWidget = MermaidRenderLatencyWidget(project)
+
+    override fun disposeWidget(widget: StatusBarWidget) = Disposer.dispose(widget)
+
+    override fun canBeEnabledOn(statusBar: StatusBar): Boolean = true
+}
+
+private fun ms(value: Double) = "${value.toInt()} ms"
@@ -0,0 +1,107 @@
+package com.github.emotionbug.mermaidliveeditor
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.FileTime
+
+class MermaidExtractionCacheTest {
+    @get:Rule
+    val tempDir = TemporaryFolder()
+
+    private val svg = "<svg data-mermaid-idx=\"0\"><rect data-mermaid-idx=\"1\"/></svg>"
+    private val browser = "msedgedriver 131.0 / /opt/microsoft/msedge/msedge@1700000000000"
+
+    private fun payload(seed: Int): Map<String, Any> =
+        mapOf("rows" to 2.0, "strings" to List(200) { "value-$seed-$it" })
+
+    private fun entry(dir: Path, key: String): Path = dir.resolve("$key.json.gz")
+
+    @Test
+    fun storedPayloadIsReadBack() {
+        val cache = MermaidExtractionCache(tempDir.root.toPath(), MermaidExtractionCache.DEFAULT_MAX_BYTES)
+        val key = MermaidExtractionCache.key(svg, browser)
+        assertNull(cache.get(key))
+        cache.put(key, payload(1))
+        assertEquals(payload(1), cache.get(key))
+    }
+
+    @Test
+    fun entriesSurviveANewInstance() {
+        val dir = tempDir.root.toPath()
+        val key = MermaidExtractionCache.key(svg, browser)
+        MermaidExtractionCache(dir, MermaidExtractionCache.DEFAULT_MAX_BYTES).put(key, payload(1))
+        assertEquals(payload(1), MermaidExtractionCache(dir, MermaidExtractionCache.DEFAULT_MAX_BYTES).get(key))
+    }
+
+    @Test
+    fun keyDependsOnTheSvg() {
+        val cache = MermaidExtractionCache(tempDir.root.toPath(), MermaidExtractionCache.DEFAULT_MAX_BYTES)
+        cache.put(MermaidExtractionCache.key(svg, browser), payload(1))
+        val changed = svg.replace("rect", "circle")
+        assertEquals(MermaidExtractionCache.key(svg, browser), MermaidExtractionCache.key(svg, browser))
+        assertNull(cache.get(MermaidExtractionCache.key(changed, browser)))
+    }
+
+    @Test
+    fun keyDependsOnTheBrowser() {
+        val cache = MermaidExtractionCache(tempDir.root.toPath(), MermaidExtractionCache.DEFAULT_MAX_BYTES)
+        cache.put(MermaidExtractionCache.key(svg, browser), payload(1))
+        // The same driver with an updated browser binary computes the styles anew.
+        val updated = browser.replace("@1700000000000", "@1710000000000")
+        assertNull(cache.get(MermaidExtractionCache.key(svg, updated)))
+        assertNull(cache.get(MermaidExtractionCache.key(svg, "msedgedriver 132.0 / default browser")))
+    }
+
+    @Test
+    fun formatVersionBumpInvalidatesEntries() {
+        val cache = MermaidExtractionCache(tempDir.root.toPath(), MermaidExtractionCache.DEFAULT_MAX_BYTES)
+        val current = MermaidExtractionCache.key(svg, browser)
+        assertEquals(current, MermaidExtractionCache.key(MermaidExtractionCache.FORMAT_VERSION, svg, browser))
+        cache.put(MermaidExtractionCache.key("1", svg, browser), payload(1))
+        assertNotEquals(MermaidExtractionCache.key("1", svg, browser), current)
+        assertNull(cache.get(current))
+    }
+
+    @Test
+    fun unreadableEntryIsDropped() {
+        val dir = tempDir.root.toPath()
+        val cache = MermaidExtractionCache(dir, MermaidExtractionCache.DEFAULT_MAX_BYTES)
+        val key = MermaidExtractionCache.key(svg, browser)
+        cache.put(key, payload(1))
+        Files.write(entry(dir, key), byteArrayOf(1, 2, 3))
+        assertNull(cache.get(key))
+        assertFalse(Files.exists(entry(dir, key)))
+    }
+
+    @Test
+    fun leastRecentlyUsedEntriesAreEvicted() {
+        val dir = tempDir.root.toPath()
+        val keys = (1..3).map { MermaidExtractionCache.key("$svg<!-- $it -->", browser) }
+        val unbounded = MermaidExtractionCache(dir, MermaidExtractionCache.DEFAULT_MAX_BYTES)
+        unbounded.put(keys[0], payload(1))
+        unbounded.put(keys[1], payload(2))
+        val first = Files.size(entry(dir, keys[0]))
+        val second = Files.size(entry(dir, keys[1]))
+
+        // Both entries are old, and reading the first one makes it the most recently used.
+        val now = System.currentTimeMillis()
+        Files.setLastModifiedTime(entry(dir, keys[0]), FileTime.fromMillis(now - 20_000))
+        Files.setLastModifiedTime(entry(dir, keys[1]), FileTime.fromMillis(now - 10_000))
+        val bounded = MermaidExtractionCache(dir, first + second + second / 2)
+        assertNotNull(bounded.get(keys[0]))
+
+        bounded.put(keys[2], payload(3))
+        assertTrue(Files.exists(entry(dir, keys[0])))
+        assertFalse(Files.exists(entry(dir, keys[1])))
+        assertEquals(payload(3), bounded.get(keys[2]))
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.emotionbug.mermaidliveeditor
+
+import com.intellij.psi.tree.IElementType
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class MermaidLexerTest {
+    private class Token(val type: IElementType, val text: String, val start: Int, val state: Int) {
+        override fun toString() = "$type '${text.replace("\n", "\\n")}' @$start/$state"
+
+        override fun equals(other: Any?) = other is Token && other.toString() == toString()
+
+        override fun hashCode() = toString().hashCode()
+    }
+
+    private fun lex(text: String, start: Int = 0, initialState: Int = MermaidLexer.STATE_INITIAL): List<Token> {
+        val lexer = MermaidLexer()
+        lexer.start(text, start, text.length, initialState)
+        val tokens = ArrayList<Token>()
+        while (true) {
+            val type = lexer.tokenType ?: break
+            tokens += Token(type, text.substring(lexer.tokenStart, lexer.tokenEnd), lexer.tokenStart, lexer.state)
+            lexer.advance()
+        }
+        return tokens
+    }
+
+    /** Tokens as "TYPE text" without whitespace, for compact expectations. */
+    private fun significant(text: String): List<String> =
+        lex(text).filter { it.type != MermaidTokenTypes.WHITE_SPACE }.map { "${it.type} ${it.text}" }
+
+    @Test
+    fun arrowBetweenNodesIsNotPartOfTheIdentifiers() {
+        assertEquals(listOf("NODE_ID A", "ARROW -->", "NODE_ID B"), significant("A-->B"))
+        assertEquals(listOf("NODE_ID A", "ARROW -.->", "NODE_ID B"), significant("A-.->B"))
+        assertEquals(listOf("NODE_ID Alice", "ARROW ->>", "NODE_ID John"), significant("Alice->>John"))
+        assertEquals(listOf("NODE_ID A", "ARROW <-->", "NODE_ID B"), significant("A<-->B"))
+        assertEquals(listOf("NODE_ID A", "ARROW ==>", "NODE_ID B"), significant("A==>B"))
+    }
+
+    @Test
+    fun hyphenatedWordsAreClassified() {
+        assertEquals(listOf("DIAGRAM_TYPE stateDiagram-v2"), significant("stateDiagram-v2"))
+        assertEquals(listOf("DIAGRAM_TYPE stateDiagram"), significant("stateDiagram"))
+        assertEquals(listOf("KEYWORD cherry-pick", "NODE_ID id"), significant("cherry-pick id"))
+        assertEquals(listOf("NODE_ID my-node"), significant("my-node"))
+    }
+
+    @Test
+    fun keywordsAndDirectionsAreClassified() {
+        assertEquals(
+            listOf("DIAGRAM_TYPE graph", "DIRECTION LR", "KEYWORD subgraph", "NODE_ID one", "KEYWORD end"),
+            significant("graph LR\nsubgraph one\nend")
+        )
+        // Only whole words are keywords.
+        assertEquals(listOf("NODE_ID ending", "NODE_ID LRX"), significant("ending LRX"))
+    }
+
+    @Test
+    fun bracketRunsAreOneToken() {
+        assertEquals(
+            listOf("NODE_ID A", "BRACKET [[", "NODE_ID sub", "BRACKET ]]", "ARROW -->", "NODE_ID B", "BRACKET ((", "NODE_ID c", "BRACKET ))"),
+            significant("A[[sub]] --> B((c))")
+        )
+        assertEquals(listOf("NODE_ID A", "BRACKET [", "NODE_ID x", "BRACKET ]"), significant("A[x]"))
+    }
+
+    @Test
+    fun commentEndsAtTheLineBreak() {
+        assertEquals(
+            listOf("COMMENT %% note", "WHITE_SPACE \n", "DIAGRAM_TYPE graph"),
+            lex("%% note\ngraph").map { "${it.type} ${it.text}" }
+        )
+    }
+
+    @Test
+    fun multiLineDirectiveIsOneCommentPerLine() {
+        val tokens = lex("%%{init: {\n  \"theme\": \"dark\"\n}}%%\ngraph TD")
+        assertEquals(
+            listOf(
+                "COMMENT '%%{init: {\\n' @0/0",
+                "COMMENT '  \"theme\": \"dark\"\\n' @11/2",
+                "COMMENT '}}%%' @29/2",
+                "WHITE_SPACE '\\n' @33/0",
+                "DIAGRAM_TYPE 'graph' @34/0",
+                "WHITE_SPACE ' ' @39/0",
+                "DIRECTION 'TD' @40/0"
+            ),
+            tokens.map { it.toString() }
+        )
+    }
+
+    @Test
+    fun singleLineDirectiveEndsAtItsClosingBraces() {
+        assertEquals(
+            listOf("COMMENT %%{init: {\"theme\": \"dark\"}}%%", "DIAGRAM_TYPE graph"),
+            significant("%%{init: {\"theme\": \"dark\"}}%% graph")
+        )
+    }
+
+    @Test
+    fun multiLineStringIsOneTokenPerLine() {
+        val tokens = lex("A[\"one\ntwo\"] --> B").filter { it.type == MermaidTokenTypes.STRING }
+        assertEquals(listOf("STRING '\"one\\n' @2/0", "STRING 'two\"' @7/1"), tokens.map { it.toString() })
+    }
+
+    @Test
+    fun unterminatedStringRunsToTheEnd() {
+        assertEquals(listOf("NODE_ID C", "BRACKET [", "STRING \"open"), significant("C[\"open"))
+        assertEquals(listOf("STRING \"open\n", "STRING more"), lex("\"open\nmore").map { "${it.type} ${it.text}" })
+    }
+
+    @Test
+    fun restartingAtAnyTokenGivesTheSameTokens() {
+        val text = """
+            %%{init: {
+              "theme": "dark"
+            }}%%
+            graph TD
+              A["multi
+              line
+              label"] --> B[[sub]]
+              %% comment
+              B -.-> C((end))
+              C["open
+        """.trimIndent()
+        val full = lex(text)
+        val restartStates = full.map { it.state }.toSet()
+        assertTrue(MermaidLexer.STATE_STRING in restartStates)
+        assertTrue(MermaidLexer.STATE_DIRECTIVE in restartStates)
+        for ((index, token) in full.withIndex()) {
+            assertEquals("restart at $token", full.drop(index), lex(text, token.start, token.state))
+        }
+    }
+}
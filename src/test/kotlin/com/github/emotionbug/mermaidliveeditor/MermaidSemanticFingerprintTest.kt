@@ -0,0 +1,86 @@
+package com.github.emotionbug.mermaidliveeditor
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Test
+
+class MermaidSemanticFingerprintTest {
+    private fun assertSame(a: String, b: String) {
+        assertEquals("fingerprints differ:\n$a\n---\n$b", MermaidSemanticFingerprint.of(a), MermaidSemanticFingerprint.of(b))
+    }
+
+    private fun assertDifferent(a: String, b: String) {
+        assertNotEquals("fingerprints equal:\n$a\n---\n$b", MermaidSemanticFingerprint.of(a), MermaidSemanticFingerprint.of(b))
+    }
+
+    @Test
+    fun blankLinesAndRepeatedWhitespaceAreIgnored() {
+        assertSame("graph TD\nA --> B", "graph TD\n\n   A  -->   B   \n\n")
+    }
+
+    @Test
+    fun contentChangesAreSignificant() {
+        assertDifferent("graph TD\nA-->B", "graph TD\nA-->C")
+        assertDifferent("graph TD\nA[\"a  b\"]", "graph TD\nA[\"a b\"]")
+    }
+
+    @Test
+    fun fullLineCommentsAreIgnored() {
+        assertSame("graph TD\nA-->B", "graph TD\n%% a note\nA-->B")
+        assertSame("graph TD\n  %% indented\nA-->B", "graph TD\nA-->B\n%% trailing line")
+    }
+
+    @Test
+    fun trailingCommentsAreSignificant() {
+        assertDifferent("graph TD\nA-->B", "graph TD\nA-->B %% note")
+        assertDifferent("graph TD\nA-->B %% one", "graph TD\nA-->B %% two")
+    }
+
+    @Test
+    fun directivesAreSignificant() {
+        val plain = "graph TD\nA-->B"
+        val dark = "%%{init: {\"theme\": \"dark\"}}%%\n$plain"
+        assertDifferent(plain, dark)
+        assertDifferent(dark, "%%{init: {\"theme\": \"forest\"}}%%\n$plain")
+    }
+
+    @Test
+    fun multiLineDirectivesAreSignificant() {
+        val dark = "%%{init: {\n  \"theme\": \"dark\"\n}}%%\ngraph TD\nA-->B"
+        val forest = "%%{init: {\n  \"theme\": \"forest\"\n}}%%\ngraph TD\nA-->B"
+        assertDifferent(dark, forest)
+        assertDifferent(dark, "graph TD\nA-->B")
+    }
+
+    @Test
+    fun frontMatterIsHashedAsIs() {
+        val body = "\ngraph TD\nA-->B"
+        assertDifferent("---\ntitle: x\n---$body", "---\ntitle: y\n---$body")
+        assertDifferent("---\ntitle: x\n---$body", "---\ntitle:  x\n---$body")
+        assertDifferent("---\ntitle: x\n---$body", "graph TD\nA-->B")
+    }
+
+    @Test
+    fun indentationIsIgnoredInFlowcharts() {
+        assertSame("graph TD\n  A-->B\n  B-->C", "graph TD\nA-->B\n    B-->C")
+    }
+
+    @Test
+    fun indentationIsSignificantInMindmaps() {
+        assertDifferent("mindmap\n  root\n    a\n    b", "mindmap\n  root\n    a\n      b")
+        assertSame("mindmap\n  root\n    a", "mindmap\n  root\n    a  \n%% c\n")
+    }
+
+    @Test
+    fun indentationIsSignificantInKanban() {
+        assertDifferent("kanban\n  Todo\n    task1\n  Done", "kanban\n  Todo\n    task1\n    Done")
+    }
+
+    @Test
+    fun indentationIsSignificantInTreemaps() {
+        val nested = "treemap-beta\n\"Root\"\n  \"A\"\n    \"Leaf\": 10\n  \"B\": 5"
+        val flat = "treemap-beta\n\"Root\"\n  \"A\"\n  \"Leaf\": 10\n  \"B\": 5"
+        assertDifferent(nested, flat)
+        assertDifferent(nested.replace("treemap-beta", "treemap"), flat.replace("treemap-beta", "treemap"))
+    }
+}